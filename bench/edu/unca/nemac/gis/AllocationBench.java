@@ -0,0 +1,145 @@
+/*
+ * This file is part of AcToShape
+ * by Mark Phillips
+ * mphillip@unca.edu
+ *
+ * Copyright (c) 2009  University of North Carolina at Asheville
+ * Licensed under the RENCI Open Source Software License v. 1.0.
+ * See the file LICENSE.txt for details.
+ */
+
+/**
+ * AllocationBench measures how many bytes of heap writing an output
+ * allocates per polygon written.  It builds a synthetic mesh in core
+ * (an N x N grid of nodes, two triangles per cell, half of them wet at
+ * every timestep), writes it with writeOutputs() for each timestep,
+ * and reads the writing thread's allocation counter
+ * (com.sun.management.ThreadMXBean.getThreadAllocatedBytes) around
+ * each call.  The first passes warm up the JIT compiler; the
+ * polygons of the remaining passes are averaged.
+ *
+ * Build it with "ant bench", then run
+ *
+ *     java -cp build:build-bench:lib/geotools-2.0.jar:lib/jts-old.jar \
+ *         edu.unca.nemac.gis.AllocationBench [options]
+ *
+ *     -n N          nodes along each side of the grid (default 200)
+ *     -t T          timesteps (default 4)
+ *     -f FORMAT     output format: shp, fgb, or geojsonseq (default shp)
+ *     -p PASSES     passes over the timesteps, the first half warming up (default 6)
+ *     -max BYTES    exit with status 1 if more than BYTES are allocated
+ *                   per polygon, to guard against regressions
+ *
+ * The outputs are written to a temporary directory, which is removed
+ * afterwards.
+ */
+
+package edu.unca.nemac.gis;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+
+public class AllocationBench {
+
+    public static void main(String args[]) throws Exception {
+        int n = 200;
+        int ntimesteps = 4;
+        int passes = 6;
+        String format = AcToShape.FORMAT_SHP;
+        double max = -1;
+        for (int i=0; i<args.length; ++i) {
+            if (args[i].equals("-n"))        { n = Integer.parseInt(args[++i]); }
+            else if (args[i].equals("-t"))   { ntimesteps = Integer.parseInt(args[++i]); }
+            else if (args[i].equals("-f"))   { format = args[++i]; }
+            else if (args[i].equals("-p"))   { passes = Integer.parseInt(args[++i]); }
+            else if (args[i].equals("-max")) { max = Double.parseDouble(args[++i]); }
+            else {
+                System.out.printf("unrecognized argument: %s\n", args[i]);
+                System.exit(2);
+            }
+        }
+
+        AcToShape mesh = syntheticMesh(n, ntimesteps);
+        mesh.setFormat(format);
+        mesh.compute();
+
+        File dir = File.createTempFile("actoshape", ".bench");
+        dir.delete();
+        dir.mkdir();
+        com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        OutputSpec specs[] = { new OutputSpec(new File(dir, "o.shp").getPath(), -1, false, 0.0, false) };
+        long bytes = 0, polygons = 0;
+        try {
+            for (int pass=0; pass<passes; ++pass) {
+                for (int time=0; time<ntimesteps; ++time) {
+                    String filenames[] = { mesh.outputFilename(specs[0], time) };
+                    long before = mx.getThreadAllocatedBytes(thread);
+                    // one thread, so that all the allocation is counted
+                    int count = mesh.writeOutputs(specs, filenames, time, false, 1)[0];
+                    long after = mx.getThreadAllocatedBytes(thread);
+                    if (pass >= passes/2) {
+                        bytes += after - before;
+                        polygons += count;
+                    }
+                }
+            }
+        } finally {
+            for (File f : dir.listFiles()) {
+                f.delete();
+            }
+            dir.delete();
+        }
+
+        double perPolygon = (double)bytes / polygons;
+        System.out.printf("%s: %d polygons, %.0f bytes allocated per polygon written\n", format, polygons, perPolygon);
+        if (max >= 0 && perPolygon > max) {
+            System.out.printf("more than the limit of %.0f bytes per polygon\n", max);
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Build an in-core mesh of n x n nodes, with the levels of every
+     * timestep loaded, so that the ground slopes down across the grid
+     * and the water covers about half of it.
+     */
+    static AcToShape syntheticMesh(int n, int ntimesteps) throws Exception {
+        AcToShape mesh = new AcToShape();
+        mesh.ntimesteps = ntimesteps;
+        mesh.navailable = ntimesteps;
+        mesh.nnodes     = n*n;
+        mesh.vertices   = new Vertex[n*n + 1];
+        mesh.nodes      = mesh.vertices;
+        for (int j=0; j<n; ++j) {
+            for (int i=0; i<n; ++i) {
+                int k = 1 + j*n + i;
+                double depth = (double)i / n - 0.5;       // below sea level for i > n/2
+                Vertex v = new Vertex(k, -78 + 0.01*i, 34 + 0.01*j, depth);
+                v.slot = k;
+                v.level63    = new double[ntimesteps];
+                v.floodlevel = new double[ntimesteps];
+                for (int t=0; t<ntimesteps; ++t) {
+                    double level = 0.1 * Math.sin(0.1*j + t);
+                    double flood = level + ((depth < 0) ? depth : 0);
+                    v.level63[t]    = level;
+                    v.floodlevel[t] = (flood < 0) ? 0 : flood;
+                }
+                mesh.vertices[k] = v;
+            }
+        }
+        mesh.triangles = new Triangle[2*(n-1)*(n-1) + 1];
+        int m = 0;
+        for (int j=0; j<n-1; ++j) {
+            for (int i=0; i<n-1; ++i) {
+                int a = 1 + j*n + i;
+                ++m;
+                mesh.triangles[m] = new Triangle(m, a, a+1, a+n);
+                ++m;
+                mesh.triangles[m] = new Triangle(m, a+1, a+n+1, a+n);
+            }
+        }
+        return mesh;
+    }
+
+}
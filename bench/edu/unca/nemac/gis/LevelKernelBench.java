@@ -0,0 +1,180 @@
+/*
+ * This file is part of AcToShape
+ * by Mark Phillips
+ * mphillip@unca.edu
+ *
+ * Copyright (c) 2009  University of North Carolina at Asheville
+ * Licensed under the RENCI Open Source Software License v. 1.0.
+ * See the file LICENSE.txt for details.
+ */
+
+/**
+ * LevelKernelBench times the loops that average the vertices' water
+ * levels onto the triangles, on the synthetic mesh of AllocationBench:
+ *
+ *     objects   the pipeline's per-triangle loop before LevelKernel,
+ *               through the Triangle and Vertex objects and the
+ *               LevelSeries calls of a FrameRing
+ *     gather    LevelKernel.compute() on the same frames, one timestep
+ *               of every triangle (the pipeline)
+ *     stream    Triangle.compute()'s loops, every timestep of one
+ *               triangle (the in-core path)
+ *
+ * gather and stream are timed with the scalar loops, and then, if this
+ * JVM has the Vector API, again with VectorAverager; each checks that
+ * its results are the same as the first loop's.  Every loop is run for
+ * a few passes to warm up the JIT compiler before it is timed.
+ *
+ * Build it with "ant bench", then run
+ *
+ *     java --add-modules jdk.incubator.vector \
+ *         -cp build:build-bench:lib/geotools-2.0.jar:lib/jts-old.jar \
+ *         edu.unca.nemac.gis.LevelKernelBench [options]
+ *
+ *     -n N          nodes along each side of the grid (default 200)
+ *     -t T          timesteps (default 64)
+ *     -p PASSES     timed passes of each loop (default 10)
+ *
+ * Without --add-modules, only the scalar loops are timed.
+ */
+
+package edu.unca.nemac.gis;
+
+import java.util.Arrays;
+
+public class LevelKernelBench {
+
+    private static int n = 200;
+    private static int ntimesteps = 64;
+    private static int passes = 10;
+
+    public static void main(String args[]) throws Exception {
+        for (int i=0; i<args.length; ++i) {
+            if (args[i].equals("-n"))        { n = Integer.parseInt(args[++i]); }
+            else if (args[i].equals("-t"))   { ntimesteps = Integer.parseInt(args[++i]); }
+            else if (args[i].equals("-p"))   { passes = Integer.parseInt(args[++i]); }
+            else {
+                System.out.printf("unrecognized argument: %s\n", args[i]);
+                System.exit(2);
+            }
+        }
+
+        AcToShape mesh = AllocationBench.syntheticMesh(n, ntimesteps);
+        Vertex vertices[] = mesh.vertices;
+        Triangle triangles[] = mesh.triangles;
+        for (int i=1; i<triangles.length; ++i) {
+            triangles[i].slot = i;
+        }
+        System.out.printf("%d triangles, %d timesteps\n", triangles.length - 1, ntimesteps);
+
+        // the pipeline's frames, one per timestep
+        FrameRing vertexFrames = new FrameRing(vertices.length, ntimesteps);
+        FrameRing triangleFrames = new FrameRing(triangles.length, ntimesteps);
+        for (int time=0; time<ntimesteps; ++time) {
+            double l[] = vertexFrames.level63Frame(time), f[] = vertexFrames.floodlevelFrame(time);
+            for (int i=1; i<vertices.length; ++i) {
+                l[i] = vertices[i].level63[time];
+                f[i] = vertices[i].floodlevel[time];
+            }
+        }
+        double expected[][] = objects(vertices, triangles, vertexFrames, triangleFrames);
+
+        LevelKernel kernel = new LevelKernel(vertices, triangles);
+        gather(kernel, vertexFrames, triangleFrames, expected, "scalar");
+        double streamed[][] = stream(vertices, triangles, null, "scalar");
+        if (LevelKernel.useVector()) {
+            gather(kernel, vertexFrames, triangleFrames, expected, "vector");
+            stream(vertices, triangles, streamed, "vector");
+        } else {
+            System.out.printf("no Vector API (run java with --add-modules jdk.incubator.vector)\n");
+        }
+    }
+
+    // the per-triangle loop, returning the level63 and floodlevel values
+    // of every triangle slot at every timestep
+    private static double[][] objects(Vertex vertices[], Triangle triangles[], FrameRing vertexFrames, FrameRing triangleFrames) {
+        long best = Long.MAX_VALUE;
+        for (int pass=0; pass<2*passes; ++pass) {
+            long start = System.nanoTime();
+            for (int time=0; time<ntimesteps; ++time) {
+                for (int i=1; i<triangles.length; ++i) {
+                    Triangle t = triangles[i];
+                    double level63 = 0, floodlevel = 0;
+                    for (int k=0; k<3; ++k) {
+                        Vertex p = vertices[t.vertex_indices[k]];
+                        level63    += vertexFrames.level63(p.slot, time);
+                        floodlevel += vertexFrames.floodlevel(p.slot, time);
+                    }
+                    triangleFrames.set(t.slot, time, level63 / 3, floodlevel / 3);
+                }
+            }
+            best = (pass >= passes) ? Math.min(best, System.nanoTime() - start) : best;
+        }
+        report("objects", "", best, (long)(triangles.length - 1) * ntimesteps);
+        return frames(triangleFrames);
+    }
+
+    private static void gather(LevelKernel kernel, FrameRing vertexFrames, FrameRing triangleFrames, double expected[][], String loops) {
+        // so that the check sees only values this loop wrote
+        for (int time=0; time<ntimesteps; ++time) {
+            Arrays.fill(triangleFrames.level63Frame(time), 1, expected[0].length, Double.NaN);
+            Arrays.fill(triangleFrames.floodlevelFrame(time), 1, expected[0].length, Double.NaN);
+        }
+        long best = Long.MAX_VALUE;
+        for (int pass=0; pass<2*passes; ++pass) {
+            long start = System.nanoTime();
+            for (int time=0; time<ntimesteps; ++time) {
+                kernel.compute(vertexFrames.level63Frame(time), vertexFrames.floodlevelFrame(time),
+                               triangleFrames.level63Frame(time), triangleFrames.floodlevelFrame(time));
+            }
+            best = (pass >= passes) ? Math.min(best, System.nanoTime() - start) : best;
+        }
+        report("gather", loops, best, (long)(expected[0].length - 1) * ntimesteps);
+        check("gather", loops, expected, frames(triangleFrames));
+    }
+
+    // Triangle.compute() for every triangle, returning the values of the
+    // first, and checking them against expected, if it's given
+    private static double[][] stream(Vertex vertices[], Triangle triangles[], double expected[][], String loops) {
+        long best = Long.MAX_VALUE;
+        for (int pass=0; pass<2*passes; ++pass) {
+            long start = System.nanoTime();
+            for (int i=1; i<triangles.length; ++i) {
+                triangles[i].compute(vertices, ntimesteps);
+            }
+            best = (pass >= passes) ? Math.min(best, System.nanoTime() - start) : best;
+        }
+        report("stream", loops, best, (long)(triangles.length - 1) * ntimesteps);
+        double values[][] = new double[2*(triangles.length - 1)][];
+        for (int i=1; i<triangles.length; ++i) {
+            values[2*(i-1)]   = triangles[i].level63;
+            values[2*(i-1)+1] = triangles[i].floodlevel;
+        }
+        if (expected != null) {
+            check("stream", loops, expected, values);
+        }
+        return values;
+    }
+
+    // the triangle frames, timestep by timestep, level63 then floodlevel
+    private static double[][] frames(FrameRing triangleFrames) {
+        double values[][] = new double[2*ntimesteps][];
+        for (int time=0; time<ntimesteps; ++time) {
+            values[2*time]   = triangleFrames.level63Frame(time).clone();
+            values[2*time+1] = triangleFrames.floodlevelFrame(time).clone();
+        }
+        return values;
+    }
+
+    private static void report(String name, String loops, long nanos, long values) {
+        System.out.printf("%-8s %-8s %8.3f ns per triangle per timestep\n", name, loops, (double)nanos / values);
+    }
+
+    private static void check(String name, String loops, double expected[][], double values[][]) {
+        if (!Arrays.deepEquals(expected, values)) {
+            System.out.printf("%s %s: results differ\n", name, loops);
+            System.exit(1);
+        }
+    }
+
+}
@@ -11,9 +11,23 @@
 package edu.unca.nemac.gis;
 
 import java.io.BufferedReader;
+import java.io.EOFException;
 import java.io.File;
-import java.io.FileReader;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
 
 import org.geotools.feature.AttributeType;
 import org.geotools.feature.AttributeTypeFactory;
@@ -32,17 +46,64 @@ public class AcToShape {
     FeatureType schema;
     GeometryFactory gf;
     Box box = null;
-    int geoIndex = 0;
     int ntimesteps;
+    int nnodes;
     /*    boolean noWater = false; */
     Vertex vertices[];
     Triangle triangles[];
+    Vertex nodes[];
     boolean verbose = true;
     boolean debugfields = false;
     int num_triangles_exported = 0;
     boolean clipcoast = false;
     double clipcoast_cliplevel = 0.0;
     boolean interpolate = false;
+    File scratchDir = null;
+    boolean outOfCore = false;
+    LevelSeries series = null;
+    LevelSeries triangleSeries = null;
+    boolean spatialIndex = false;
+    int mvtMinZoom = -1;
+    int mvtMaxZoom = -1;
+    String format = FORMAT_SHP;
+    long maxShapefileBytes = ShapefileExporter.MAX_FILE_BYTES;
+    double rasterCellsize = 0;
+    FloodRaster raster = null;
+    double deltaTolerance = -1;
+
+    // incremental runs: the first timestep not yet written for every
+    // output, where the block of the one before it starts in the .63
+    // file, and the number of complete timestep blocks in the file
+    boolean incremental = false;
+    String options = "";
+    String gridFingerprint = null;
+    String input63Fingerprint = null;
+    int resumeTimestep = 0;
+    long resumeOffset = 0;
+    int navailable = 0;
+    // where each timestep's block starts in the .63 file, and its first line
+    long blockOffsets[];
+    String blockMarks[];
+    // the timesteps written (or skipped) so far, and how many leading
+    // ones all are
+    boolean finished[];
+    int nfinished = 0;
+
+    /**
+     * Output formats.
+     */
+    public static final String FORMAT_SHP        = "shp";
+    public static final String FORMAT_FGB        = "fgb";
+    public static final String FORMAT_GEOJSONSEQ = "geojsonseq";
+    public static final String FORMAT_MVT        = "mvt";
+    public static final String FORMAT_TIF        = "tif";
+
+    /**
+     * Fewest exported triangles worth giving a thread of their own when
+     * writing a shapefile in chunks, and when computing triangle levels.
+     */
+    private static final int CHUNK_TRIANGLES   = 20000;
+    private static final int COMPUTE_TRIANGLES = 4096;
 
     public void setInterpolate(boolean interpolate) {
         this.interpolate = interpolate;
@@ -56,6 +117,56 @@ public class AcToShape {
         this.clipcoast_cliplevel = clipcoast_cliplevel;
     }
 
+    /**
+     * Keep the .63 level time series in a memory-mapped scratch file
+     * in the given directory (or the system temporary directory, if
+     * dir is null) rather than in memory.
+     */
+    public void setOutOfCore(File dir) {
+        this.outOfCore = true;
+        this.scratchDir = dir;
+    }
+
+    public void setSpatialIndex(boolean spatialIndex) {
+        this.spatialIndex = spatialIndex;
+    }
+
+    /**
+     * Write Mapbox Vector Tile pyramids for the given range of zoom
+     * levels instead of shapefiles.
+     */
+    public void setVectorTiles(int minzoom, int maxzoom) {
+        this.format = FORMAT_MVT;
+        this.mvtMinZoom = minzoom;
+        this.mvtMaxZoom = maxzoom;
+    }
+
+    /**
+     * Set the largest .shp or .dbf file to write; shapefiles that would
+     * be larger are split into parts.
+     */
+    public void setMaxShapefileBytes(long maxShapefileBytes) {
+        this.maxShapefileBytes = maxShapefileBytes;
+    }
+
+    /**
+     * Write GeoTIFF rasters of the floodlevel, with square cells of the
+     * given size in degrees, instead of shapefiles.  The rasters cover
+     * the box set with setBox(), or the whole mesh if there is none.
+     */
+    public void setRaster(double cellsize) {
+        this.format = FORMAT_TIF;
+        this.rasterCellsize = cellsize;
+    }
+
+    /**
+     * Select the output format: one of FORMAT_SHP, FORMAT_FGB, or
+     * FORMAT_GEOJSONSEQ (use setVectorTiles() for FORMAT_MVT).
+     */
+    public void setFormat(String format) {
+        this.format = format;
+    }
+
     public void setVerbose(boolean verbose) {
         this.verbose = verbose;
     }
@@ -66,6 +177,32 @@ public class AcToShape {
       }
     */
 
+    /**
+     * Record, in a state file beside each output, which timesteps have
+     * been written, and on a later run with the same inputs and options
+     * resume after them; see resume().  The options string describes
+     * the settings, other than those of the OutputSpecs, that the
+     * outputs depend on.
+     */
+    public void setIncremental(String options) {
+        this.incremental = true;
+        this.options = options;
+    }
+
+    /**
+     * Write each series of shapefiles as delta frames: a keyframe for
+     * the first timestep, then change files holding only the triangles
+     * that became wet or dry, or whose floodlevel moved by more than
+     * tolerance, since they were last written (see DeltaFrame).  Every
+     * record gets a "tid" attribute identifying its triangle, so that
+     * the change files can be applied to the keyframe, and a "change"
+     * attribute saying what kind of change it records.
+     */
+    public void setDelta(double tolerance) throws Exception {
+        this.deltaTolerance = tolerance;
+        buildSchema();
+    }
+
     public void setBox(double xmin, double ymin, double xmax, double ymax) {
         this.box = new Box(xmin, ymin, xmax, ymax);
     }
@@ -80,6 +217,11 @@ public class AcToShape {
 
     public AcToShape(boolean debugfields) throws Exception {
         this.debugfields = debugfields;
+        buildSchema();
+        gf = new GeometryFactory();
+    }
+
+    private void buildSchema() throws Exception {
         ArrayList<AttributeType> attTypes = new ArrayList<AttributeType>();
         attTypes.add( AttributeTypeFactory.newAttributeType("geom",        Geometry.class) );
         attTypes.add( AttributeTypeFactory.newAttributeType("timestep",    Integer.class, true, 8) );
@@ -90,154 +232,211 @@ public class AcToShape {
             attTypes.add( AttributeTypeFactory.newAttributeType("tindex",      Integer.class, true,  8) );
             attTypes.add( AttributeTypeFactory.newAttributeType("vindices",    String.class,  true, 32) );
         }
+        if (deltaTolerance >= 0) {
+            attTypes.add( AttributeTypeFactory.newAttributeType("tid",         Integer.class, true, 10) );
+            attTypes.add( AttributeTypeFactory.newAttributeType("change",      String.class,  true,  7) );
+        }
         schema = FeatureTypeFactory.newFeatureType(attTypes.toArray(new AttributeType[0]), "AcToShape");
-        gf = new GeometryFactory();
     }
 
-    public Feature triangleToFeature(int geoIndex, Triangle t, int time) throws Exception {
-        Coordinate coords[] = null;
+    /**
+     * Compute the polygon that represents a triangle in the output for
+     * the given timestep, clipped to the coast if the spec's clipcoast is
+     * set, along with its depth, floodlevel, and level63 values.  The result is
+     * stored in poly, which may be reused from one triangle to the next.
+     * A triangle that lies entirely below the clip level gets a polygon
+     * with no points.
+     */
+    public void trianglePolygon(Triangle t, int time, OutputSpec spec, OutputPolygon poly) {
         Vertex p, q;
-        int j,k;
+        int k;
         int numVerticesBelowClipLevel = 0;
 
+        poly.clear(t, time);
+        poly.tindex = t.index;
+        for (int i=0; i<3; ++i) {
+            poly.vindices[i] = vertices[t.vertex_indices[i]].index;
+        }
         double avg_depth      = t.depth;
-        double avg_floodlevel = t.floodlevel[time];
-        double avg_level63    = t.level63[time];
+        double avg_floodlevel = floodlevel(t, time);
+        double avg_level63    = level63(t, time);
 
         //        if (clipcoast) {
         for (int i=0; i<3; ++i) {
-            if (vertices[t.vertex_indices[i]].depth > clipcoast_cliplevel) { ++numVerticesBelowClipLevel; }
+            if (vertices[t.vertex_indices[i]].depth > spec.cliplevel) { ++numVerticesBelowClipLevel; }
         }
         //        }
         /* if (this.noWater && numVerticesBelowClipLevel==3) { return null; } */
-        if (!clipcoast) {
-            coords = new Coordinate[4];
-            for (int i=0; i<4; ++i) {
-                p = vertices[t.vertex_indices[i%3]];
-                coords[i] = new Coordinate(p.x, p.y);
+        if (!spec.clipcoast) {
+            for (int i=0; i<3; ++i) {
+                p = vertices[t.vertex_indices[i]];
+                poly.add(p.x, p.y);
             }
+            poly.close();
         } else {
             switch (numVerticesBelowClipLevel) {
 
             case 0:
-                coords = new Coordinate[4];
-                for (int i=0; i<4; ++i) {
-                    p = vertices[t.vertex_indices[i%3]];
-                    coords[i] = new Coordinate(p.x, p.y);
+                for (int i=0; i<3; ++i) {
+                    p = vertices[t.vertex_indices[i]];
+                    poly.add(p.x, p.y);
                 }
+                poly.close();
                 break;
 
             case 1:
-                coords = new Coordinate[5];
-                k = 0;
                 avg_depth      = 0;
                 avg_floodlevel = 0;
                 avg_level63    = 0;
                 for (int i=0; i<3; ++i) {
                     p = vertices[t.vertex_indices[i]];
-                    if (p.depth <= clipcoast_cliplevel) {
-                        coords[k++] = new Coordinate(p.x, p.y);
+                    if (p.depth <= spec.cliplevel) {
+                        poly.add(p.x, p.y);
                         avg_depth      += p.depth;
-                        avg_floodlevel += p.floodlevel[time];
-                        avg_level63    += p.level63[time];
+                        avg_floodlevel += floodlevel(p, time);
+                        avg_level63    += level63(p, time);
                     } else {
                         q = vertices[t.vertex_indices[posMod(i+2,3)]];
-                        coords[k++] = WeightedLinearCombniationCoordinate(q, q.depth, p, p.depth, clipcoast_cliplevel);
+                        poly.add(WeightedLinearCombniationValue(q.x, q.depth, p.x, p.depth, spec.cliplevel),
+                                 WeightedLinearCombniationValue(q.y, q.depth, p.y, p.depth, spec.cliplevel));
                         avg_depth      += 0;
-                        avg_floodlevel += WeightedLinearCombniationValue(q.floodlevel[time], q.depth, p.floodlevel[time], p.depth, clipcoast_cliplevel);
-                        avg_level63    += WeightedLinearCombniationValue(q.level63[time],    q.depth, p.level63[time],    p.depth, clipcoast_cliplevel);
+                        avg_floodlevel += WeightedLinearCombniationValue(floodlevel(q, time), q.depth, floodlevel(p, time), p.depth, spec.cliplevel);
+                        avg_level63    += WeightedLinearCombniationValue(level63(q, time),    q.depth, level63(p, time),    p.depth, spec.cliplevel);
 
                         q = vertices[t.vertex_indices[posMod(i+1,3)]];
-                        coords[k++] = WeightedLinearCombniationCoordinate(p, p.depth, q, q.depth, clipcoast_cliplevel);
+                        poly.add(WeightedLinearCombniationValue(p.x, p.depth, q.x, q.depth, spec.cliplevel),
+                                 WeightedLinearCombniationValue(p.y, p.depth, q.y, q.depth, spec.cliplevel));
                         avg_depth      += 0;
-                        avg_floodlevel += WeightedLinearCombniationValue(p.floodlevel[time], p.depth, q.floodlevel[time], q.depth, clipcoast_cliplevel);
-                        avg_level63    += WeightedLinearCombniationValue(p.level63[time],    p.depth, q.level63[time],    q.depth, clipcoast_cliplevel);
+                        avg_floodlevel += WeightedLinearCombniationValue(floodlevel(p, time), p.depth, floodlevel(q, time), q.depth, spec.cliplevel);
+                        avg_level63    += WeightedLinearCombniationValue(level63(p, time),    p.depth, level63(q, time),    q.depth, spec.cliplevel);
                     }
                 }
-                // Note: the above loop populates 4 vertices, even though it only executes 3 times (i=0,1,2),
+                // Note: the above loop adds 4 vertices, even though it only executes 3 times (i=0,1,2),
                 // because the inner 'else' clause, which inserts 2 vertices, will be execute exactly once,
                 // since numVerticesBelowClipLevel==1.  Now close the polyline (which is a quadrilateral):
-                coords[4] = coords[0];
-                if (this.interpolate) {
+                poly.close();
+                if (spec.interpolate) {
                     avg_depth      /= 4;
                     avg_floodlevel /= 4;
                     avg_level63    /= 4;
                 } else {
                     avg_depth      = t.depth;
-                    avg_floodlevel = t.floodlevel[time];
-                    avg_level63    = t.level63[time];
+                    avg_floodlevel = floodlevel(t, time);
+                    avg_level63    = level63(t, time);
                 }
                 break;
 
             case 2:
-                coords = new Coordinate[4];
                 // find the one nonpostive vertex; there must be exactly one, since numVerticesBelowClipLevel==2 here:
                 int i;
                 avg_depth      = 0;
                 avg_floodlevel = 0;
                 avg_level63    = 0;
                 for (i=0; i<3; ++i) {
-                    if (vertices[t.vertex_indices[i]].depth <= clipcoast_cliplevel) { break; }
+                    if (vertices[t.vertex_indices[i]].depth <= spec.cliplevel) { break; }
                 }
                 // now i is the index of the nonpostive vertex
-                j = 0;
                 p = vertices[t.vertex_indices[i]];
-                coords[j++] = new Coordinate(p.x, p.y);
+                poly.add(p.x, p.y);
                 avg_depth      += p.depth;
-                avg_floodlevel += p.floodlevel[time];
-                avg_level63    += p.level63[time];
+                avg_floodlevel += floodlevel(p, time);
+                avg_level63    += level63(p, time);
 
                 k = posMod(i+1,3);
                 q = vertices[t.vertex_indices[k]];
-                Coordinate c = WeightedLinearCombniationCoordinate(p, p.depth, q, q.depth, clipcoast_cliplevel);
-                coords[j++] = c;
+                poly.add(WeightedLinearCombniationValue(p.x, p.depth, q.x, q.depth, spec.cliplevel),
+                         WeightedLinearCombniationValue(p.y, p.depth, q.y, q.depth, spec.cliplevel));
                 avg_depth      += 0;
-                avg_floodlevel += WeightedLinearCombniationValue(p.floodlevel[time], p.depth, q.floodlevel[time], q.depth, clipcoast_cliplevel);
-                avg_level63    += WeightedLinearCombniationValue(p.level63[time],    p.depth, q.level63[time],    q.depth, clipcoast_cliplevel);
+                avg_floodlevel += WeightedLinearCombniationValue(floodlevel(p, time), p.depth, floodlevel(q, time), q.depth, spec.cliplevel);
+                avg_level63    += WeightedLinearCombniationValue(level63(p, time),    p.depth, level63(q, time),    q.depth, spec.cliplevel);
 
                 k = posMod(i+2,3);
                 q = vertices[t.vertex_indices[k]];
-                c = WeightedLinearCombniationCoordinate(q, q.depth, p, p.depth, clipcoast_cliplevel);
-                coords[j++] = c;
+                poly.add(WeightedLinearCombniationValue(q.x, q.depth, p.x, p.depth, spec.cliplevel),
+                         WeightedLinearCombniationValue(q.y, q.depth, p.y, p.depth, spec.cliplevel));
                 avg_depth      += 0;
-                avg_floodlevel += WeightedLinearCombniationValue(q.floodlevel[time], q.depth, p.floodlevel[time], p.depth, clipcoast_cliplevel);
-                avg_level63    += WeightedLinearCombniationValue(q.level63[time],    q.depth, p.level63[time],    p.depth, clipcoast_cliplevel);
+                avg_floodlevel += WeightedLinearCombniationValue(floodlevel(q, time), q.depth, floodlevel(p, time), p.depth, spec.cliplevel);
+                avg_level63    += WeightedLinearCombniationValue(level63(q, time),    q.depth, level63(p, time),    p.depth, spec.cliplevel);
 
-                coords[3] = coords[0];
+                poly.close();
 
-                if (this.interpolate) {
+                if (spec.interpolate) {
                     avg_depth      /= 3;
                     avg_floodlevel /= 3;
                     avg_level63    /= 3;
                 } else {
                     avg_depth      = t.depth;
-                    avg_floodlevel = t.floodlevel[time];
-                    avg_level63    = t.level63[time];
+                    avg_floodlevel = floodlevel(t, time);
+                    avg_level63    = level63(t, time);
                 }
             }
         }
 
+        poly.depth      = avg_depth;
+        poly.floodlevel = avg_floodlevel;
+        poly.level63    = avg_level63;
+    }
+
+    public void trianglePolygon(Triangle t, int time, OutputPolygon poly) {
+        trianglePolygon(t, time, defaultSpec(null), poly);
+    }
+
+    /**
+     * Return an OutputSpec for the given file name with the clipcoast,
+     * cliplevel, and interpolate settings of this object.
+     */
+    public OutputSpec defaultSpec(String filename) {
+        return new OutputSpec(filename, -1, clipcoast, clipcoast_cliplevel, interpolate);
+    }
+
+    public Feature triangleToFeature(int geoIndex, Triangle t, int time) throws Exception {
+        OutputPolygon poly = new OutputPolygon();
+        trianglePolygon(t, time, poly);
+        return polygonToFeature(geoIndex, poly);
+    }
+
+    public Feature polygonToFeature(int geoIndex, OutputPolygon poly) throws Exception {
+        Coordinate coords[] = null;
+        if (poly.npoints > 0) {
+            coords = new Coordinate[poly.npoints];
+            for (int i=0; i<poly.npoints; ++i) {
+                coords[i] = new Coordinate(poly.x[i], poly.y[i]);
+            }
+        }
         LinearRing lr = gf.createLinearRing(coords);
-        Polygon poly = gf.createPolygon(lr, null);
-        ArrayList<Object> objs = new ArrayList<Object>();
-        objs.add(poly);
-        objs.add(new Integer(time));
-        objs.add(new Float(avg_depth));
-        objs.add(new Float(avg_floodlevel));
-        objs.add(new Float(avg_level63));
-        if (debugfields) {
-            objs.add(new Integer(t.index));
-            objs.add(String.format("%1d,%1d,%1d",
-                                   vertices[t.vertex_indices[0]].index,
-                                   vertices[t.vertex_indices[1]].index,
-                                   vertices[t.vertex_indices[2]].index));
-        }
-        Feature feature = schema.create(objs.toArray(new Object[0]),
-                                        new Integer(geoIndex).toString()
-                                        );
+        Polygon polygon = gf.createPolygon(lr, null);
+        Object atts[] = new Object[schema.getAttributeCount()];
+        atts[0] = polygon;
+        polygonAttributes(poly, atts);
+        Feature feature = schema.create(atts, Integer.toString(geoIndex));
         return feature;
     }
 
+    /**
+     * Store the polygon's attribute values in atts, in the order of the
+     * schema, leaving atts[0] (the geometry) alone.  GeoTools keeps the
+     * values as objects of the attributes' declared classes, so they are
+     * boxed, but when atts is reused for the polygons of one timestep
+     * the timestep's box is kept from one to the next.
+     */
+    public void polygonAttributes(OutputPolygon poly, Object atts[]) {
+        if (!(atts[1] instanceof Integer) || ((Integer)atts[1]).intValue() != poly.time) {
+            atts[1] = Integer.valueOf(poly.time);
+        }
+        atts[2] = Float.valueOf((float)poly.depth);
+        atts[3] = Float.valueOf((float)poly.floodlevel);
+        atts[4] = Float.valueOf((float)poly.level63);
+        if (debugfields) {
+            atts[5] = Integer.valueOf(poly.tindex);
+            atts[6] = poly.vindices[0] + "," + poly.vindices[1] + "," + poly.vindices[2];
+        }
+        if (deltaTolerance >= 0) {
+            int k = debugfields ? 7 : 5;
+            atts[k]   = Integer.valueOf(poly.triangle.slot);
+            atts[k+1] = (poly.change != null) ? poly.change : DeltaFrame.CHANGE_KEY;
+        }
+    }
+
     private static int posMod(int i, int n) {
         return i % n;
         /*
@@ -247,36 +446,67 @@ public class AcToShape {
         */
     }
 
-    private static Coordinate WeightedLinearCombniationCoordinate(Vertex a, double wa, Vertex b, double wb, double wlev) {
-        wa -= wlev;
-        wb -= wlev;
-        double f = wb - wa;
-        return new Coordinate( (a.x * wb - b.x * wa) / f,  (a.y * wb - b.y * wa) / f );
-    }
-    
     private static double WeightedLinearCombniationValue(double a, double wa, double b, double wb, double wlev) {
         wa -= wlev;
         wb -= wlev;
         return (a * wb - b * wa) / (wb - wa) ;
     }
     
-    private void exportFeatures(ShapefileExporter se, Triangle t, int timestep)
-        throws Exception {
+    //
+    // Level accessors.  A vertex's levels come from its own arrays when the
+    // time series is held in memory, from the out-of-core series otherwise,
+    // and are interpolated from its parents for vertices created by subdivide
+    // when no arrays were allocated for them.  A triangle's levels come from
+    // its own arrays, from the pipeline's triangle frames, or are otherwise
+    // averaged from its vertices.
+    //
+
+    double level63(Vertex p, int time) {
+        if (p.level63 != null) { return p.level63[time]; }
+        if (p.parents != null) { return (level63(p.parents[0], time) + level63(p.parents[1], time))/2; }
+        return series.level63(p.slot, time);
+    }
+
+    double floodlevel(Vertex p, int time) {
+        if (p.floodlevel != null) { return p.floodlevel[time]; }
+        if (p.parents != null) {
+            // same rule as Vertex.average()
+            double f = level63(p, time) + p.depth;
+            return (f < 0) ? 0 : f;
+        }
+        return series.floodlevel(p.slot, time);
+    }
+
+    double level63(Triangle t, int time) {
+        if (t.level63 != null) { return t.level63[time]; }
+        if (triangleSeries != null) { return triangleSeries.level63(t.slot, time); }
+        return (level63(vertices[t.vertex_indices[0]], time)
+                + level63(vertices[t.vertex_indices[1]], time)
+                + level63(vertices[t.vertex_indices[2]], time)) / 3;
+    }
+
+    double floodlevel(Triangle t, int time) {
+        if (t.floodlevel != null) { return t.floodlevel[time]; }
+        if (triangleSeries != null) { return triangleSeries.floodlevel(t.slot, time); }
+        return (floodlevel(vertices[t.vertex_indices[0]], time)
+                + floodlevel(vertices[t.vertex_indices[1]], time)
+                + floodlevel(vertices[t.vertex_indices[2]], time)) / 3;
+    }
+
+    /**
+     * Test whether a triangle should appear in the output for the given
+     * timestep: it must be covered by water at that time, or lie below
+     * sea level.
+     */
+    boolean isExported(Triangle t, int timestep) {
         //              if (box == null || t.lies_within_box(vertices, box)) {
-        double floodlevel = t.floodlevel[timestep];
+        double floodlevel = floodlevel(t, timestep);
         if (t.depth > 0) {
             // if this triangle is below sea level, force its floodlevel to be 100
             floodlevel = 100;
         }
         //        if (floodlevel > 0 && (!this.noWater || floodlevel < 100)) {
-        if (floodlevel > 0) {
-            Feature f = triangleToFeature(geoIndex++, t, timestep);
-            if (f != null) {
-                se.addFeature(f);
-                ++num_triangles_exported;
-            }
-        }
-        //}
+        return floodlevel > 0;
     }
 
     
@@ -365,6 +595,77 @@ public class AcToShape {
 
     }
 
+    /**
+     * Return the smallest Box containing every vertex in the mesh.
+     */
+    public Box extent() {
+        Box ext = new Box(Double.MAX_VALUE, Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE);
+        for (int i=1; i<vertices.length; ++i) {
+            Vertex p = vertices[i];
+            if (p.x < ext.xmin) { ext.xmin = p.x; }
+            if (p.y < ext.ymin) { ext.ymin = p.y; }
+            if (p.x > ext.xmax) { ext.xmax = p.x; }
+            if (p.y > ext.ymax) { ext.ymax = p.y; }
+        }
+        return ext;
+    }
+
+    /**
+     * Reorder the vertices along a Hilbert curve through their
+     * coordinates, and the triangles along the same curve through their
+     * centroids, so that vertices and triangles that are near each other
+     * in space are near each other in the arrays, and in the shapefiles
+     * written from them.  The vertex indices in the triangles are
+     * remapped the same way clipToBox() remaps them; the vertices' and
+     * triangles' original grid file numbers are kept in their index
+     * fields.  This should be called before compute().
+     */
+    public void reorder() {
+        Box ext = extent();
+        Vertex p;
+
+        // Sort keys hold the Hilbert index in the high bits and the old
+        // array index in the low 31 bits.
+        long keys[] = new long[vertices.length-1];
+        for (int i=1; i<vertices.length; ++i) {
+            p = vertices[i];
+            keys[i-1] = (Hilbert.index(p.x, p.y, ext) << 31) | i;
+        }
+        Arrays.sort(keys);
+        int new_vertex_indices[] = new int[vertices.length];
+        Vertex new_vertices[] = new Vertex[vertices.length];
+        for (int k=0; k<keys.length; ++k) {
+            int old_vertex_index = (int)(keys[k] & 0x7fffffff);
+            new_vertex_indices[old_vertex_index] = k+1;
+            new_vertices[k+1] = vertices[old_vertex_index];
+        }
+
+        keys = new long[triangles.length-1];
+        Triangle t;
+        for (int i=1; i<triangles.length; ++i) {
+            t = triangles[i];
+            double x = 0, y = 0;
+            for (int j=0; j<3; ++j) {
+                p = vertices[t.vertex_indices[j]];
+                x += p.x;
+                y += p.y;
+            }
+            keys[i-1] = (Hilbert.index(x/3, y/3, ext) << 31) | i;
+        }
+        Arrays.sort(keys);
+        Triangle new_triangles[] = new Triangle[triangles.length];
+        for (int k=0; k<keys.length; ++k) {
+            t = triangles[(int)(keys[k] & 0x7fffffff)];
+            new_triangles[k+1] = new Triangle(t.index,
+                                              new_vertex_indices[t.vertex_indices[0]],
+                                              new_vertex_indices[t.vertex_indices[1]],
+                                              new_vertex_indices[t.vertex_indices[2]]);
+        }
+
+        vertices  = new_vertices;
+        triangles = new_triangles;
+    }
+
     /*
       subdivide:
 
@@ -376,20 +677,36 @@ public class AcToShape {
     */
 
     public void subdivide() {
-        Vertex   new_vertices[]  = new Vertex[ (vertices.length-1) + 3*triangles.length + 1];
-        Triangle new_triangles[] = new Triangle[ 4*(triangles.length-1) + 1 ];
-                
+        split(null, triangles.length-1);
+    }
+
+    /**
+     * Split the triangles for which which[] is true (all of them, if
+     * which is null), n of them, the way subdivide() does, leaving the
+     * others as they are.  Each split triangle is replaced in place by
+     * its 4 new ones.  Returns an array telling which of the new
+     * triangles came from splitting.
+     */
+    private boolean[] split(boolean which[], int n) {
+        Vertex   new_vertices[]  = new Vertex[ vertices.length + 3*n ];
+        Triangle new_triangles[] = new Triangle[ triangles.length + 3*n ];
+        boolean  made[]          = new boolean[ new_triangles.length ];
+
         int new_vertex_index;
         for (new_vertex_index=1; new_vertex_index<vertices.length; ++new_vertex_index) {
             new_vertices[new_vertex_index] = vertices[new_vertex_index];
         }
 
-        int new_triangle_index = 0;
+        int new_triangle_index = 1;
         Triangle t;
         Vertex a,b,c,ab,ac,bc;
         int a_index,b_index,c_index,ab_index,ac_index,bc_index;
         for (int old_triangle_index=1; old_triangle_index<triangles.length; ++old_triangle_index) {
             t = triangles[old_triangle_index];
+            if (which != null && !which[old_triangle_index]) {
+                new_triangles[new_triangle_index++] = t;
+                continue;
+            }
             a = new_vertices[a_index=t.vertex_indices[0]];
             b = new_vertices[b_index=t.vertex_indices[1]];
             c = new_vertices[c_index=t.vertex_indices[2]];
@@ -399,6 +716,7 @@ public class AcToShape {
             new_vertices[ab_index=new_vertex_index] = ab; ++new_vertex_index;
             new_vertices[ac_index=new_vertex_index] = ac; ++new_vertex_index;
             new_vertices[bc_index=new_vertex_index] = bc; ++new_vertex_index;
+            Arrays.fill(made, new_triangle_index, new_triangle_index+4, true);
             new_triangles[new_triangle_index++] = new Triangle(t.index, a_index,ab_index,ac_index);
             new_triangles[new_triangle_index++] = new Triangle(t.index, ab_index,bc_index,ac_index);
             new_triangles[new_triangle_index++] = new Triangle(t.index, ab_index,b_index,bc_index);
@@ -406,6 +724,78 @@ public class AcToShape {
         }
         vertices  = new_vertices;
         triangles = new_triangles;
+        return made;
+    }
+
+    /**
+     * Subdivide only where it shows: split a triangle, the way
+     * subdivide() does, if it crosses the cliplevel of one of the specs
+     * that clip the coast (some but not all of its vertices are deeper
+     * than it), or if its vertices' floodlevels
+     * differ by more than threshold at some timestep that one of the
+     * specs includes, and test the 4 triangles it is split into in the
+     * same way, up to maxdepth times.  Triangles over open water or dry
+     * land, where the levels are flat, are left alone.  A split triangle
+     * shares an edge with its unsplit neighbors only in part, but since
+     * each triangle is written as a polygon of its own, they still
+     * cover the same area.  The levels must already be loaded.  Returns
+     * the number of triangles split.
+     */
+    public int refine(int maxdepth, double threshold, OutputSpec specs[]) {
+        // the cliplevels of the specs that clip the coast
+        double cliplevels[] = new double[specs.length];
+        int ncliplevels = 0;
+        for (OutputSpec spec : specs) {
+            if (spec.clipcoast) {
+                cliplevels[ncliplevels++] = spec.cliplevel;
+            }
+        }
+        // the loaded timesteps that some output includes
+        int times[] = new int[navailable];
+        int ntimes = 0;
+        for (int time=resumeTimestep; time<navailable; ++time) {
+            if (outputFilenames(specs, time) != null) {
+                times[ntimes++] = time;
+            }
+        }
+        boolean test[] = null;
+        int nsplit = 0;
+        for (int depth=0; depth<maxdepth; ++depth) {
+            boolean which[] = new boolean[triangles.length];
+            int n = 0;
+            for (int i=1; i<triangles.length; ++i) {
+                if ((test == null || test[i]) && needsRefining(triangles[i], threshold, cliplevels, ncliplevels, times, ntimes)) {
+                    which[i] = true;
+                    ++n;
+                }
+            }
+            if (n == 0) { break; }
+            test = split(which, n);
+            nsplit += n;
+        }
+        return nsplit;
+    }
+
+    private boolean needsRefining(Triangle t, double threshold, double cliplevels[], int ncliplevels, int times[], int ntimes) {
+        Vertex a = vertices[t.vertex_indices[0]];
+        Vertex b = vertices[t.vertex_indices[1]];
+        Vertex c = vertices[t.vertex_indices[2]];
+        for (int k=0; k<ncliplevels; ++k) {
+            double cliplevel = cliplevels[k];
+            int nbelow = ((a.depth > cliplevel) ? 1 : 0) + ((b.depth > cliplevel) ? 1 : 0) + ((c.depth > cliplevel) ? 1 : 0);
+            if (nbelow == 1 || nbelow == 2) {
+                return true;
+            }
+        }
+        for (int k=0; k<ntimes; ++k) {
+            double fa = floodlevel(a, times[k]);
+            double fb = floodlevel(b, times[k]);
+            double fc = floodlevel(c, times[k]);
+            if (Math.max(fa, Math.max(fb, fc)) - Math.min(fa, Math.min(fb, fc)) > threshold) {
+                return true;
+            }
+        }
+        return false;
     }
 
 
@@ -420,8 +810,15 @@ public class AcToShape {
         }
     }
 
+    /**
+     * Load the grid file.  If a box has been set, only the nodes inside
+     * it, and the triangles whose nodes are all inside it, are kept as
+     * they are read, and the mesh is then compacted as clipToBox()
+     * would, so that the memory used depends on the size of the box
+     * rather than of the whole grid.
+     */
     private void loadGridFile(String gridFilename) throws Exception {
-        BufferedReader br = new BufferedReader(new FileReader(new File(gridFilename)));
+        BufferedReader br = CompressedInput.openReader(gridFilename);
         String line = br.readLine(); // skip first line
         // next line is: #triangles #vertices
         line = br.readLine().trim();
@@ -429,104 +826,1049 @@ public class AcToShape {
         int ntriangles, nvertices;
         ntriangles = Integer.parseInt(fields[0]);
         nvertices = Integer.parseInt(fields[1]);
+        nnodes = nvertices;
 
-        vertices = new Vertex[nvertices+1];
+        // With a box, inbox[i] is the position in vertices of the i-th
+        // node in the file, or 0 if it lies outside the box.
+        int inbox[] = (box != null) ? new int[nvertices+1] : null;
+        int nkept = 0;
+        Vertex kept[] = new Vertex[(box != null) ? 1024 : nvertices+1];
         output(" %1d vertices,", nvertices);
         for (int i=1; i<=nvertices; ++i) {
             line = br.readLine().trim();
             fields = line.split(" +");
-            vertices[i] = new Vertex(Integer.parseInt(fields[0]),
-                                     Double.parseDouble(fields[1]),
-                                     Double.parseDouble(fields[2]),
-                                     Double.parseDouble(fields[3]));
+            Vertex v = new Vertex(Integer.parseInt(fields[0]),
+                                  Double.parseDouble(fields[1]),
+                                  Double.parseDouble(fields[2]),
+                                  Double.parseDouble(fields[3]));
+            if (inbox == null) {
+                kept[++nkept] = v;
+            } else if (v.x >= box.xmin && v.y >= box.ymin && v.x <= box.xmax && v.y <= box.ymax) {
+                if (nkept+1 == kept.length) {
+                    kept = Arrays.copyOf(kept, 2*kept.length);
+                }
+                kept[++nkept] = v;
+                inbox[i] = nkept;
+            }
         }
+        vertices = (kept.length == nkept+1) ? kept : Arrays.copyOf(kept, nkept+1);
 
-        triangles = new Triangle[ntriangles+1];
+        int ntkept = 0;
+        Triangle tkept[] = new Triangle[(box != null) ? 1024 : ntriangles+1];
         output(" %1d triangles.", ntriangles);
         for (int i=1; i<=ntriangles; ++i) {
             line = br.readLine().trim();
             fields = line.split(" +");
-            triangles[i] = new Triangle(Integer.parseInt(fields[0]),
-                                        Integer.parseInt(fields[2]),
-                                        Integer.parseInt(fields[3]),
-                                        Integer.parseInt(fields[4]));
+            int a = Integer.parseInt(fields[2]);
+            int b = Integer.parseInt(fields[3]);
+            int c = Integer.parseInt(fields[4]);
+            if (inbox != null) {
+                a = inbox[a];
+                b = inbox[b];
+                c = inbox[c];
+                if (a == 0 || b == 0 || c == 0) { continue; }
+                if (ntkept+1 == tkept.length) {
+                    tkept = Arrays.copyOf(tkept, 2*tkept.length);
+                }
+            }
+            tkept[++ntkept] = new Triangle(Integer.parseInt(fields[0]), a, b, c);
         }
-                                  
+        triangles = (tkept.length == ntkept+1) ? tkept : Arrays.copyOf(tkept, ntkept+1);
+
         br.close();
+
+        if (box != null) {
+            // drop the nodes in the box that are not in any triangle in it
+            clipToBox();
+            output(" %1d vertices, %1d triangles in box.", vertices.length-1, triangles.length-1);
+        }
     }
 
-    public void load63File(String filename) throws Exception {
+    /**
+     * Open a .63 file and read its header, setting ntimesteps.  This also
+     * numbers the slots of the current vertices and builds the table that
+     * maps node numbers in the .63 file to vertices, so it may be called
+     * after the mesh has been clipped or subdivided.
+     */
+    private Reader63 open63File(String filename) throws Exception {
         Reader63 r63 = new Reader63(filename);
         String line = r63.readLine(); // skip first line
         // on second line,  1st field is number of time steps, 2nd field is number of vertices
         line = r63.readLine().trim();
         String fields[] = line.split(" +");
         ntimesteps = Integer.parseInt(fields[0]);
-        output(" %1d timesteps:", ntimesteps);
         int npts = Integer.parseInt(fields[1]);
         // confirm that number of vertices is
-        if (npts != vertices.length-1) {
-            throw new Exception(String.format("%s: number of vertices should be %1d\n", filename, vertices.length-1));
+        if (npts != nnodes) {
+            throw new Exception(String.format("%s: number of vertices should be %1d\n", filename, nnodes));
         }
-        for (int time=0; time<ntimesteps; ++time) {
-            output(" %1d", time+1);
-            // skip next line
-            r63.readLine();
-            // read vertices & levels for this timestep:
-            for (int i=0; i<npts; ++i) {
-                line = r63.readLine().trim();
-                fields = line.split(" +");
-                int j = Integer.parseInt(fields[0]);
-                double wlev = Double.parseDouble(fields[1]);
-                if (time==0) {
-                    vertices[j].level63 = new double[ntimesteps];
-                    vertices[j].floodlevel = new double[ntimesteps];
+        nodes = new Vertex[nnodes+1];
+        for (int i=1; i<vertices.length; ++i) {
+            vertices[i].slot = i;
+            if (vertices[i].index > 0) {
+                nodes[vertices[i].index] = vertices[i];
+            }
+        }
+        blockOffsets = new long[ntimesteps];
+        blockMarks   = new String[ntimesteps];
+        finished     = new boolean[ntimesteps];
+        nfinished    = 0;
+        navailable   = 0;
+        if (resumeTimestep > 0) {
+            // seek to the block of the last finished timestep, which
+            // resume() has checked, and skip it
+            r63.close();
+            r63 = new Reader63(filename, resumeOffset);
+            skip63Timestep(r63, resumeTimestep-1);
+            Arrays.fill(finished, 0, resumeTimestep, true);
+            nfinished  = resumeTimestep;
+            navailable = resumeTimestep;
+        }
+        return r63;
+    }
+
+    /**
+     * Read the next line of a timestep block, or return null if the file
+     * ends first.  In an incremental run the file may still be being
+     * written, so a last line without an end of line counts as missing.
+     */
+    private String readBlockLine(Reader63 r63) throws Exception {
+        String line = r63.readLine();
+        if (line != null && incremental && !r63.lineEnded()) {
+            return null;
+        }
+        return line;
+    }
+
+    // note where the block of a timestep starts, and its first line;
+    // returns false if the file ends first
+    private boolean startBlock(Reader63 r63, int time) throws Exception {
+        blockOffsets[time] = r63.getOffset();
+        blockMarks[time]   = readBlockLine(r63);
+        return blockMarks[time] != null;
+    }
+
+    /**
+     * Read the levels for one timestep from an open .63 file.  Nodes that
+     * are no longer in the mesh are skipped.  Returns false if the file
+     * ends before the timestep's block does.
+     */
+    private boolean read63Timestep(Reader63 r63, int time) throws Exception {
+        // skip next line
+        if (!startBlock(r63, time)) { return false; }
+        // read vertices & levels for this timestep:
+        for (int i=0; i<nnodes; ++i) {
+            String line = readBlockLine(r63);
+            if (line == null) { return false; }
+            // look up the node before splitting the line, so lines for
+            // nodes that are not in the mesh are skipped cheaply
+            Vertex v = nodes[leadingInt(line)];
+            if (v == null) { continue; }
+            String fields[] = line.trim().split(" +");
+            double wlev = Double.parseDouble(fields[1]);
+            double flev = wlev;
+            if (v.depth < 0 ) {
+                // only subtract land surface height/depth when depth<0, i.e. for nodes
+                // that are above MSL
+                flev += v.depth;
+            }
+            if (flev < 0) {
+                flev = 0;
+            }
+            if (series != null) {
+                series.set(v.slot, time, wlev, flev);
+            } else {
+                if (v.level63 == null) {
+                    v.level63 = new double[ntimesteps];
+                    v.floodlevel = new double[ntimesteps];
                 }
-                vertices[j].level63[time] = wlev;
-                vertices[j].floodlevel[time] = vertices[j].level63[time];
+                v.level63[time] = wlev;
+                v.floodlevel[time] = flev;
+            }
+        }
+        return true;
+    }
+
+    // parse the integer at the start of a line, after any spaces
+    private static int leadingInt(String line) {
+        int k = 0, n = line.length();
+        while (k < n && line.charAt(k) == ' ') { ++k; }
+        int v = 0;
+        for (; k < n; ++k) {
+            char ch = line.charAt(k);
+            if (ch < '0' || ch > '9') { break; }
+            v = 10*v + (ch - '0');
+        }
+        return v;
+    }
+
+    private boolean skip63Timestep(Reader63 r63, int time) throws Exception {
+        if (!startBlock(r63, time)) { return false; }
+        for (int i=0; i<nnodes; ++i) {
+            if (readBlockLine(r63) == null) { return false; }
+        }
+        return true;
+    }
+
+    // the error for a .63 file that ends before its last timestep
+    private static EOFException endsEarly(String filename, int time) {
+        return new EOFException(String.format("%s: file ends in time step %1d", filename, time+1));
+    }
+
+    /**
+     * Release the out-of-core scratch file, if there is one.
+     */
+    public void close() {
+        if (series instanceof MappedTimeSeries) {
+            ((MappedTimeSeries)series).close();
+            series = null;
+        }
+    }
+
+    /**
+     * Load the .63 file, from the first timestep not yet written.  In an
+     * incremental run, the timesteps whose blocks are in the file so far
+     * are loaded; navailable is set to the number of them.
+     */
+    public void load63File(String filename) throws Exception {
+        Reader63 r63 = open63File(filename);
+        output(" %1d timesteps:", ntimesteps);
+        if (outOfCore) {
+            series = new MappedTimeSeries(scratchDir, vertices.length, resumeTimestep, ntimesteps);
+        }
+        for (int time=resumeTimestep; time<ntimesteps; ++time) {
+            output(" %1d", time+1);
+            if (!read63Timestep(r63, time)) {
+                if (!incremental) { throw endsEarly(filename, time); }
+                output(" (not yet written)");
+                break;
+            }
+            navailable = time+1;
+        }
+        r63.close();
+    }
+
+    /**
+     * Set up an incremental run: read the state file of each output,
+     * and if it was written from the same grid file, .63 file, and
+     * options, skip the timesteps it says are finished.  The .63 file is
+     * identified by its header and its first timestep's block, since it
+     * may have grown since (see fingerprint63()); the
+     * offset of the last finished timestep's block is checked against
+     * the line recorded for it, and if any differs, every output is
+     * written from the start.  Returns the first timestep to be read.
+     */
+    public int resume(String gridFilename, String filename, OutputSpec specs[]) throws Exception {
+        gridFingerprint = RunState.fingerprint(gridFilename);
+        input63Fingerprint = fingerprint63(filename);
+
+        RunState states[] = new RunState[specs.length];
+        boolean same = true;
+        for (int s=0; s<specs.length; ++s) {
+            RunState state = RunState.read(RunState.filename(specs[s]));
+            if (state == null || !state.matches(runState(specs[s])) || state.steps <= 0) {
+                continue;
+            }
+            try {
+                Reader63 r63 = new Reader63(filename, state.offset);
+                same = same && state.mark.equals(r63.readLine());
+                r63.close();
+            } catch (EOFException e) {
+                same = false;
+            }
+            states[s] = state;
+        }
+        resumeTimestep = Integer.MAX_VALUE;
+        for (int s=0; s<specs.length; ++s) {
+            specs[s].firstTimestep = (same && states[s] != null) ? states[s].steps : 0;
+            if (specs[s].delta != null && specs[s].firstTimestep > 0
+                && !specs[s].delta.restore(DeltaFrame.filename(specs[s]), specs[s].firstTimestep)) {
+                // without what the earlier run wrote, the series can't be continued
+                specs[s].firstTimestep = 0;
+            }
+            if (specs[s].firstTimestep < resumeTimestep) {
+                resumeTimestep = specs[s].firstTimestep;
+                resumeOffset   = (resumeTimestep > 0) ? states[s].offset : 0;
+            }
+        }
+        return resumeTimestep;
+    }
 
-                if (vertices[j].depth < 0 ) {
-                    // only subtract land surface height/depth when depth<0, i.e. for nodes
-                    // that are above MSL
-                    vertices[j].floodlevel[time] += vertices[j].depth;
+    /**
+     * Return a fingerprint of a .63 file that stays the same while a
+     * simulation adds timesteps to it: that of its header and the block
+     * of its first timestep.  The header alone would be the same for
+     * every run of a model setup.  If the first block isn't complete
+     * yet, only the header is used; no timestep can have been finished
+     * from such a file.
+     */
+    private static String fingerprint63(String filename) throws Exception {
+        Reader63 r63 = new Reader63(filename);
+        ArrayList<String> lines = new ArrayList<String>();
+        try {
+            lines.add(String.valueOf(r63.readLine()));
+            String header = r63.readLine();
+            lines.add(String.valueOf(header));
+            String fields[] = (header == null) ? new String[0] : header.trim().split(" +");
+            if (fields.length > 1) {
+                // the line starting the block, then one per node
+                int nlines = 1 + Integer.parseInt(fields[1]);
+                ArrayList<String> block = new ArrayList<String>();
+                String line = null;
+                while (block.size() < nlines && (line = r63.readLine()) != null) {
+                    block.add(line);
+                }
+                if (block.size() == nlines && r63.lineEnded()) {
+                    lines.addAll(block);
                 }
+            }
+        } finally {
+            r63.close();
+        }
+        return RunState.fingerprint(lines.toArray(new String[0]));
+    }
 
-                if (vertices[j].floodlevel[time] < 0) {
-                    vertices[j].floodlevel[time] = 0;
+    // a state for an output, with the current inputs and options
+    private RunState runState(OutputSpec spec) {
+        return new RunState(gridFingerprint, input63Fingerprint, options + " " + spec.settings());
+    }
+
+    /**
+     * Note that every output has been written for a timestep (or does
+     * not include it).  In an incremental run, when that finishes
+     * another run of leading timesteps, the state files are updated,
+     * along with the saved state of any delta frame series.
+     */
+    public synchronized void finishTimestep(OutputSpec specs[], int time) throws IOException {
+        if (!incremental) { return; }
+        finished[time] = true;
+        int prefix = nfinished;
+        while (nfinished < ntimesteps && finished[nfinished]) {
+            ++nfinished;
+        }
+        if (nfinished == prefix || blockOffsets[nfinished-1] < 0) {
+            return;
+        }
+        for (OutputSpec spec : specs) {
+            if (nfinished > spec.firstTimestep) {
+                // the delta frame state goes first, so that a state file
+                // never claims more than it has saved
+                if (spec.delta != null && !spec.delta.save(DeltaFrame.filename(spec), nfinished)) {
+                    continue;
                 }
+                RunState state = runState(spec);
+                state.steps  = nfinished;
+                state.offset = blockOffsets[nfinished-1];
+                state.mark   = blockMarks[nfinished-1];
+                state.write(RunState.filename(spec));
             }
         }
-        r63.close();
     }
 
     public void compute() {
-        for (Triangle t : triangles) {
-            if (t != null) {
-                t.compute(this.vertices, this.ntimesteps);
+        for (int i=1; i<triangles.length; ++i) {
+            triangles[i].slot = i;
+        }
+        ForkJoinPool.commonPool().invoke(new Compute(1, triangles.length));
+    }
+
+    /**
+     * Computes the levels of triangles lo .. hi-1, splitting the range
+     * in half until it has at most COMPUTE_TRIANGLES triangles.
+     */
+    private class Compute extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private int lo, hi;
+
+        Compute(int lo, int hi) {
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        protected void compute() {
+            if (hi - lo > COMPUTE_TRIANGLES) {
+                int mid = (lo + hi) / 2;
+                invokeAll(new Compute(lo, mid), new Compute(mid, hi));
+                return;
             }
+            for (int i=lo; i<hi; ++i) {
+                Triangle t = triangles[i];
+                if (t == null) { continue; }
+                if (series != null) {
+                    // out of core: triangle levels are averaged on demand when written
+                    t.computeDepth(vertices);
+                } else {
+                    t.compute(vertices, ntimesteps);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Return a description of the kind of output being written, for messages.
+     */
+    public String outputKind() {
+        if (format.equals(FORMAT_MVT))        { return "vector tiles"; }
+        if (format.equals(FORMAT_FGB))        { return "FlatGeobuf file"; }
+        if (format.equals(FORMAT_GEOJSONSEQ)) { return "GeoJSON file"; }
+        if (format.equals(FORMAT_TIF))        { return "GeoTIFF raster"; }
+        return "shapefile";
+    }
+
+    /**
+     * Open a PolygonWriter for the given output format.  The filename
+     * is a shapefile name; for the other formats, its ".shp" suffix
+     * (if any) is replaced by the format's own suffix, or removed, for
+     * vector tile directories.
+     */
+    public PolygonWriter openOutput(String filename, String format) throws Exception {
+        if (format.equals(FORMAT_SHP)) {
+            ShapefileOutput so = new ShapefileOutput(this, filename, spatialIndex);
+            so.setMaxBytes(maxShapefileBytes);
+            return so;
+        }
+        String base = filename.replaceAll("\\.shp$", "").replaceAll("\\.SHP$", "");
+        if (format.equals(FORMAT_FGB)) {
+            return new FlatGeobufWriter(base.replaceAll("\\.fgb$", "") + ".fgb", debugfields);
+        }
+        if (format.equals(FORMAT_GEOJSONSEQ)) {
+            return new GeoJsonSeqWriter(base.replaceAll("\\.geojsonl$", "") + ".geojsonl", debugfields);
+        }
+        if (format.equals(FORMAT_MVT)) {
+            return new VectorTileWriter(base, mvtMinZoom, mvtMaxZoom);
         }
+        throw new IllegalArgumentException("unknown output format: " + format);
     }
 
+    /**
+     * Write the output for one timestep, in whichever format was selected.
+     */
+    public void write(String filename, int timestep) throws Exception {
+        OutputSpec specs[] = { defaultSpec(filename) };
+        this.num_triangles_exported = writeOutputs(specs, new String[] { filename }, timestep, this.verbose)[0];
+    }
 
     public void writeShp(String shapefilename, int timestep) throws Exception {
-        ShapefileExporter se = new ShapefileExporter(shapefilename);
-        int percentdone = 10;
-        this.geoIndex = 0;
-        this.num_triangles_exported = 0;
-        for (int i=1; i<triangles.length; ++i) {
-            exportFeatures(se, triangles[i], timestep);
-            int pdone = (int)(Math.round(100.0 * i/triangles.length));
-            if (pdone >= percentdone) {
-                output("%1d%%", pdone);
-                if (pdone < 100) {
-                    output("..");
+        String saved = format;
+        format = FORMAT_SHP;
+        try {
+            write(shapefilename, timestep);
+        } finally {
+            format = saved;
+        }
+    }
+
+    /**
+     * Return the name of the file to write for an output spec at a
+     * timestep: the spec's file name itself if it is for a single
+     * timestep, or there is only one, or else the name with
+     * "-step-NNNNN" added, or "-delta-NNNNN" for the change files of a
+     * series written as delta frames.
+     */
+    public String outputFilename(OutputSpec spec, int timestep) {
+        if (spec.timestep >= 0 || ntimesteps == 1) {
+            return spec.filename;
+        }
+        if (spec.delta != null && !spec.delta.keyframe()) {
+            return String.format(deltaFilenameFormat(spec.filename), timestep+1);
+        }
+        return String.format(stepFilenameFormat(spec.filename), timestep+1);
+    }
+
+    /**
+     * Write the outputs for one timestep, for each of the given specs
+     * that includes it, to the named files, returning the number of
+     * triangles written for each spec.  The polygon outputs are all
+     * written in a single pass over the triangles, each triangle's
+     * polygon being computed once per spec.  Rasters, and shapefiles
+     * too big for one file, are written separately afterwards.
+     *
+     * This keeps no state in the AcToShape object, so several
+     * timesteps may be written at once from different threads, except
+     * when writing delta frames, which must be written in order.
+     *
+     * @param filenames  output file name for each spec, or null for specs that do not include the timestep
+     * @param progress   print percentage progress messages
+     */
+    public int[] writeOutputs(OutputSpec specs[], String filenames[], int timestep, boolean progress) throws Exception {
+        return writeOutputs(specs, filenames, timestep, progress, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Write the outputs for one timestep, using up to nthreads threads
+     * to build shapefiles with many triangles in chunks (see
+     * writeShapefileChunks()).
+     */
+    public int[] writeOutputs(OutputSpec specs[], String filenames[], int timestep, boolean progress, int nthreads) throws Exception {
+        // change files are chosen and written apart from the full outputs
+        String full[] = filenames.clone();
+        boolean any = false;
+        for (int s=0; s<specs.length; ++s) {
+            if (full[s] != null && specs[s].delta != null && !specs[s].delta.keyframe()) {
+                full[s] = null;
+            }
+            any = any || full[s] != null;
+        }
+        int counts[] = any ? writeFullOutputs(specs, full, timestep, progress, nthreads) : new int[specs.length];
+        for (int s=0; s<specs.length; ++s) {
+            if (filenames[s] == null || specs[s].delta == null) { continue; }
+            if (full[s] == null) {
+                counts[s] = writeDelta(specs[s], filenames[s], timestep);
+            } else {
+                specs[s].delta.wroteKeyframe(timestep);
+            }
+        }
+        return counts;
+    }
+
+    private int[] writeFullOutputs(OutputSpec specs[], String filenames[], int timestep, boolean progress, int nthreads) throws Exception {
+        int counts[] = new int[specs.length];
+        PolygonWriter writers[] = new PolygonWriter[specs.length];
+        int nexported = format.equals(FORMAT_SHP) ? countExported(timestep) : 0;
+        boolean split = nexported > shapefileCapacity();
+        int nchunks = split ? 1 : Math.min(nthreads, nexported / CHUNK_TRIANGLES);
+        if (nchunks > 1) {
+            return writeShapefileChunks(specs, filenames, timestep, progress, nchunks);
+        }
+        int nwriters = 0;
+        for (int s=0; s<specs.length; ++s) {
+            if (filenames[s] != null && !format.equals(FORMAT_TIF) && !split) {
+                writers[s] = openOutput(filenames[s], format);
+                ++nwriters;
+            }
+        }
+
+        if (nwriters > 0) {
+            OutputPolygon poly = new OutputPolygon();
+            int percentdone = 10;
+            for (int i=1; i<triangles.length; ++i) {
+                Triangle t = triangles[i];
+                if (isExported(t, timestep)) {
+                    for (int s=0; s<specs.length; ++s) {
+                        if (writers[s] != null) {
+                            trianglePolygon(t, timestep, specs[s], poly);
+                            if (writers[s].write(poly)) {
+                                ++counts[s];
+                            }
+                        }
+                    }
+                }
+                int pdone = (int)(Math.round(100.0 * i/triangles.length));
+                if (progress && pdone >= percentdone) {
+                    output("%1d%%", pdone);
+                    if (pdone < 100) {
+                        output("..");
+                    } else {
+                        //output("\n");
+                    }
+                    percentdone += 10;
+                }
+            }
+            for (int s=0; s<specs.length; ++s) {
+                if (writers[s] != null) {
+                    writers[s].close();
+                }
+            }
+        }
+
+        for (int s=0; s<specs.length; ++s) {
+            if (filenames[s] != null && writers[s] == null) {
+                if (format.equals(FORMAT_TIF)) {
+                    counts[s] = writeRaster(specs[s], filenames[s], timestep);
                 } else {
-                    //output("\n");
+                    counts[s] = writeShapefileParts(specs[s], filenames[s], timestep, progress);
+                }
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Write the shapefiles for one timestep by dividing the triangles
+     * into nchunks ranges of the triangle list, writing the records for
+     * each range to a temporary shapefile in a thread of its own, and
+     * then concatenating the temporary shapefiles in order.  Each
+     * resulting shapefile is the same as if it were written in one pass.
+     * Returns the number of triangles written for each spec.
+     */
+    private int[] writeShapefileChunks(final OutputSpec specs[], final String filenames[], final int timestep,
+                                       boolean progress, final int nchunks) throws Exception {
+        final String chunkNames[][] = new String[specs.length][nchunks];
+        for (int s=0; s<specs.length; ++s) {
+            if (filenames[s] != null) {
+                for (int c=0; c<nchunks; ++c) {
+                    chunkNames[s][c] = String.format("%s.chunk%02d", shapefileBase(filenames[s]), c+1);
                 }
-                percentdone += 10;
             }
         }
-        se.close();
+
+        ExecutorService pool = Executors.newFixedThreadPool(nchunks);
+        ArrayList<Future<int[]>> chunks = new ArrayList<Future<int[]>>();
+        for (int c=0; c<nchunks; ++c) {
+            final int chunk = c;
+            final int from = 1 + (int)((long)(triangles.length-1) * c / nchunks);
+            final int to   = 1 + (int)((long)(triangles.length-1) * (c+1) / nchunks);
+            chunks.add(pool.submit(new Callable<int[]>() {
+                    public int[] call() throws Exception {
+                        int counts[] = new int[specs.length];
+                        PolygonWriter writers[] = new PolygonWriter[specs.length];
+                        for (int s=0; s<specs.length; ++s) {
+                            if (filenames[s] != null) {
+                                // the index is built for the whole shapefile when the chunks are merged
+                                writers[s] = new ShapefileOutput(AcToShape.this, chunkNames[s][chunk], false);
+                            }
+                        }
+                        OutputPolygon poly = new OutputPolygon();
+                        for (int i=from; i<to; ++i) {
+                            Triangle t = triangles[i];
+                            if (isExported(t, timestep)) {
+                                for (int s=0; s<specs.length; ++s) {
+                                    if (writers[s] != null) {
+                                        trianglePolygon(t, timestep, specs[s], poly);
+                                        if (writers[s].write(poly)) {
+                                            ++counts[s];
+                                        }
+                                    }
+                                }
+                            }
+                        }
+                        for (int s=0; s<specs.length; ++s) {
+                            if (writers[s] != null) {
+                                writers[s].close();
+                            }
+                        }
+                        return counts;
+                    }
+                }));
+        }
+
+        int counts[] = new int[specs.length];
+        try {
+            try {
+                for (int c=0; c<nchunks; ++c) {
+                    int n[] = chunks.get(c).get();
+                    for (int s=0; s<specs.length; ++s) {
+                        counts[s] += n[s];
+                    }
+                    if (progress) {
+                        output((c < nchunks-1) ? "%1d%%.." : "%1d%%", (int)Math.round(100.0 * (c+1) / nchunks));
+                    }
+                }
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof Exception) {
+                    throw (Exception)e.getCause();
+                }
+                throw e;
+            } finally {
+                pool.shutdownNow();
+                // wait for the other chunks to stop writing before their files are removed
+                pool.awaitTermination(1, TimeUnit.MINUTES);
+            }
+
+            for (int s=0; s<specs.length; ++s) {
+                if (filenames[s] != null) {
+                    ShapefileMerger.merge(chunkNames[s], shapefileBase(filenames[s]), spatialIndex);
+                }
+            }
+        } finally {
+            // merge() removes the chunks it merges; this removes them if
+            // a chunk or a merge failed
+            for (int s=0; s<specs.length; ++s) {
+                if (filenames[s] == null) { continue; }
+                for (String chunk : chunkNames[s]) {
+                    for (String suffix : new String[] { ".shp", ".shx", ".dbf", ".prj", ".qix" }) {
+                        (new File(chunk + suffix)).delete();
+                    }
+                }
+            }
+        }
+        return counts;
+    }
+
+    // the name of a shapefile without its ".shp", as ShapefileExporter takes it
+    private static String shapefileBase(String shapefilename) {
+        return shapefilename.endsWith(".shp") ? shapefilename.substring(0, shapefilename.length() - 4) : shapefilename;
+    }
+
+    /**
+     * Return the FloodRaster for the mesh, creating it the first time
+     * it is needed, after the mesh has been clipped and subdivided.
+     */
+    private synchronized FloodRaster getRaster() {
+        if (raster == null) {
+            raster = new FloodRaster(this, (box != null) ? box : extent(), rasterCellsize);
+        }
+        return raster;
+    }
+
+    public static String rasterFilename(String filename) {
+        return filename.replaceAll("\\.shp$", "").replaceAll("\\.SHP$", "").replaceAll("\\.tif$", "") + ".tif";
+    }
+
+    /**
+     * Write a GeoTIFF raster of the floodlevel at one timestep, to a file
+     * named after the given shapefile name, returning the number of
+     * triangles in it.
+     */
+    private int writeRaster(OutputSpec spec, String filename, int timestep) throws Exception {
+        FloodRaster r = getRaster();
+        GeoTiffWriter.write(rasterFilename(filename), r, r.rasterize(timestep, spec, null));
+        return r.countTriangles(timestep);
+    }
+
+    /**
+     * Write a GeoTIFF raster of the maximum floodlevel over all timesteps,
+     * to a file named after the spec's file name.
+     */
+    public void writeMaxRaster(OutputSpec spec) throws Exception {
+        FloodRaster r = getRaster();
+        float grid[] = null;
+        for (int time=0; time<ntimesteps; ++time) {
+            grid = r.rasterize(time, spec, grid);
+            output(verbose, (time < ntimesteps-1) ? "%1d.." : "%1d", time+1);
+        }
+        GeoTiffWriter.write(rasterFilename(spec.filename), r, grid);
+    }
+
+    /**
+     * Return the number of triangles exported at the given timestep.
+     */
+    private int countExported(int timestep) {
+        int n = 0;
+        for (int i=1; i<triangles.length; ++i) {
+            if (isExported(triangles[i], timestep)) { ++n; }
+        }
+        return n;
+    }
+
+    /**
+     * Return the most triangles that are sure to fit in one shapefile
+     * without its .shp or .dbf file growing past maxShapefileBytes: no
+     * polygon has more than 5 points, and .dbf records have a fixed size.
+     */
+    private long shapefileCapacity() {
+        long shpRecord = ShapefileExporter.SHP_POLYGON_BYTES + 5 * ShapefileExporter.SHP_POINT_BYTES;
+        long dbfRecord = ShapefileExporter.dbfRecordBytes(schema);
+        return Math.min((maxShapefileBytes - ShapefileExporter.SHP_HEADER_BYTES) / shpRecord,
+                        (maxShapefileBytes - ShapefileExporter.dbfHeaderBytes(schema)) / dbfRecord);
+    }
+
+    /**
+     * Write the shapefile for one timestep in parts, because it could be
+     * larger than maxShapefileBytes, returning the number of triangles
+     * written.  The triangles are divided into spatially compact
+     * groups, each small enough for one shapefile, and each group is
+     * written to its own shapefile, named by adding "-partNN" to the
+     * given name.  The parts are written concurrently.
+     */
+    private int writeShapefileParts(OutputSpec spec, String shapefilename, int timestep, boolean progress) throws Exception {
+        int exported[] = new int[triangles.length];
+        int n = 0;
+        for (int i=1; i<triangles.length; ++i) {
+            if (isExported(triangles[i], timestep)) {
+                exported[n++] = i;
+            }
+        }
+        return writeShapefileParts(spec, shapefilename, timestep, progress, exported, null, n);
+    }
+
+    /**
+     * Write the triangles whose slots are listed in exported[0..n-1] in
+     * parts, as above, with the delta frame change kinds in changes[],
+     * by slot, if it isn't null.
+     */
+    private int writeShapefileParts(final OutputSpec spec, String shapefilename, final int timestep, boolean progress,
+                                    final int exported[], final String changes[], int n) throws Exception {
+        long perPart = shapefileCapacity();
+        final int nparts = (int)((n + perPart - 1) / perPart);
+        final int starts[] = new int[nparts+1];
+        splitParts(exported, 0, n, nparts, starts, 0);
+        starts[nparts] = n;
+
+        final String partFormat = shapefilename.replaceAll("\\.shp$", "").replaceAll("\\.SHP$", "") + "-part%02d.shp";
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(nparts, Runtime.getRuntime().availableProcessors()));
+        ArrayList<Future<Integer>> parts = new ArrayList<Future<Integer>>();
+        for (int p=0; p<nparts; ++p) {
+            final int part = p;
+            parts.add(pool.submit(new Callable<Integer>() {
+                    public Integer call() throws Exception {
+                        PolygonWriter pw = openOutput(String.format(partFormat, part+1), FORMAT_SHP);
+                        OutputPolygon poly = new OutputPolygon();
+                        int nwritten = 0;
+                        for (int k=starts[part]; k<starts[part+1]; ++k) {
+                            trianglePolygon(triangles[exported[k]], timestep, spec, poly);
+                            if (changes != null) {
+                                poly.change = changes[exported[k]];
+                            }
+                            if (pw.write(poly)) {
+                                ++nwritten;
+                            }
+                        }
+                        pw.close();
+                        return nwritten;
+                    }
+                }));
+        }
+
+        if (progress) {
+            output("%1d parts: ", nparts);
+        }
+        int nwritten = 0;
+        try {
+            for (int p=0; p<nparts; ++p) {
+                nwritten += parts.get(p).get();
+                if (progress) {
+                    output((p < nparts-1) ? "%1d.." : "%1d", p+1);
+                }
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception)e.getCause();
+            }
+            throw e;
+        } finally {
+            pool.shutdownNow();
+        }
+        return nwritten;
+    }
+
+    /**
+     * Write the change file for a timestep of a series written as delta
+     * frames, returning the number of triangles in it.  If nothing has
+     * changed, no file is written.
+     */
+    private int writeDelta(OutputSpec spec, String filename, int timestep) throws Exception {
+        int changed[] = new int[triangles.length];
+        String changes[] = new String[triangles.length];
+        int n = spec.delta.select(timestep, changed, changes);
+        if (n > shapefileCapacity()) {
+            return writeShapefileParts(spec, filename, timestep, false, changed, changes, n);
+        }
+        int nwritten = 0;
+        if (n > 0) {
+            PolygonWriter pw = openOutput(filename, format);
+            OutputPolygon poly = new OutputPolygon();
+            for (int k=0; k<n; ++k) {
+                trianglePolygon(triangles[changed[k]], timestep, spec, poly);
+                poly.change = changes[changed[k]];
+                if (pw.write(poly)) {
+                    ++nwritten;
+                }
+            }
+            pw.close();
+        }
+        return nwritten;
+    }
+
+    /**
+     * Divide the triangles listed in tl[from..to-1] into nparts parts
+     * of nearly equal size, recording the position in tl where each
+     * part starts in starts[part..part+nparts-1].  The list is cut
+     * recursively across the longer side of the box around the
+     * triangles' centers, so each part covers a compact area.  Within
+     * each part the triangles are left in their original order.
+     */
+    private void splitParts(int tl[], int from, int to, int nparts, int starts[], int part) {
+        if (nparts == 1) {
+            starts[part] = from;
+            Arrays.sort(tl, from, to);
+            return;
+        }
+        double cx[] = new double[to - from];
+        double cy[] = new double[to - from];
+        Box box = new Box(Double.MAX_VALUE, Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE);
+        for (int k=from; k<to; ++k) {
+            Triangle t = triangles[tl[k]];
+            for (int j=0; j<3; ++j) {
+                Vertex p = vertices[t.vertex_indices[j]];
+                cx[k-from] += p.x / 3;
+                cy[k-from] += p.y / 3;
+            }
+            box.xmin = Math.min(box.xmin, cx[k-from]);
+            box.ymin = Math.min(box.ymin, cy[k-from]);
+            box.xmax = Math.max(box.xmax, cx[k-from]);
+            box.ymax = Math.max(box.ymax, cy[k-from]);
+        }
+        boolean alongx = (box.xmax - box.xmin >= box.ymax - box.ymin);
+        double c[]  = alongx ? cx : cy;
+        double min  = alongx ? box.xmin : box.ymin;
+        double size = alongx ? box.xmax - box.xmin : box.ymax - box.ymin;
+
+        // Sort keys hold the triangle's position across the cut in the
+        // high bits and its index in the low bits.
+        long keys[] = new long[to - from];
+        for (int k=0; k<to-from; ++k) {
+            long q = (size > 0) ? (long)((c[k] - min) / size * Integer.MAX_VALUE) : 0;
+            keys[k] = (q << 31) | tl[from+k];
+        }
+        Arrays.sort(keys);
+        for (int k=0; k<to-from; ++k) {
+            tl[from+k] = (int)(keys[k] & 0x7fffffff);
+        }
+
+        int left = nparts / 2;
+        int mid = from + (int)((long)(to - from) * left / nparts);
+        splitParts(tl, from, mid, left, starts, part);
+        splitParts(tl, mid, to, nparts - left, starts, part + left);
+    }
+
+    /**
+     * Compute the level63 and floodlevel values of every triangle for one
+     * timestep, directly from the vertex frame into the triangle frame.
+     */
+    private void computeTimestep(LevelKernel kernel, FrameRing vertexFrames, FrameRing triangleFrames, int time) {
+        kernel.compute(vertexFrames.level63Frame(time), vertexFrames.floodlevelFrame(time),
+                       triangleFrames.level63Frame(time), triangleFrames.floodlevelFrame(time));
+    }
+
+    /**
+     * Return the file to write for each spec at the given timestep, or
+     * null for specs that do not include it; returns null if no spec
+     * includes it.
+     */
+    public String[] outputFilenames(OutputSpec specs[], int timestep) {
+        String filenames[] = new String[specs.length];
+        boolean any = false;
+        for (int s=0; s<specs.length; ++s) {
+            if (specs[s].wants(timestep)) {
+                filenames[s] = outputFilename(specs[s], timestep);
+                any = true;
+            }
+        }
+        return any ? filenames : null;
+    }
+
+    private static String stepFilenameFormat(String shpfile) {
+        return shpfile.replaceAll("\\.shp$", "").replaceAll("\\.SHP$", "") + "-step-%05d.shp";
+    }
+
+    private static String deltaFilenameFormat(String shpfile) {
+        return shpfile.replaceAll("\\.shp$", "").replaceAll("\\.SHP$", "") + "-delta-%05d.shp";
+    }
+
+    private static final int END_OF_SERIES = -1;
+
+    /**
+     * Read the .63 file and write the outputs as a pipeline, rather
+     * than loading every timestep before writing any of them.  One thread
+     * parses timestep blocks from the .63 file, a second computes the
+     * triangle levels for each parsed timestep, and nwriters threads write
+     * the shapefiles.  The stages are connected by bounded queues, and only
+     * nwriters+2 timesteps are held in memory at once, so reading timestep
+     * N+1 overlaps with writing timestep N, and a reader that gets ahead of
+     * the writers waits for them.  Timesteps that no spec includes are
+     * skipped without being parsed.  In an incremental run, the
+     * timesteps before resumeTimestep are not read, and the pipeline
+     * stops at the end of the timestep blocks in the file so far.
+     *
+     * The mesh should already be clipped and subdivided, if desired;
+     * compute() should not be called.
+     *
+     * @param filename      name of the .63 file
+     * @param specs         the outputs to write
+     * @param nwriters      number of writer threads
+     */
+    public void runPipeline(final String filename, final OutputSpec specs[], final int nwriters) throws Exception {
+        final Reader63 r63 = open63File(filename);
+        final int nframes = nwriters + 2;
+        final FrameRing vertexFrames   = new FrameRing(vertices.length, nframes);
+        final FrameRing triangleFrames = new FrameRing(triangles.length, nframes);
+        series         = vertexFrames;
+        triangleSeries = triangleFrames;
+        // numbers the triangles' slots, and only computes depths, since series is set
+        compute();
+        final LevelKernel kernel = new LevelKernel(vertices, triangles);
+
+        final BlockingQueue<Integer> parsed   = new ArrayBlockingQueue<Integer>(nframes);
+        final BlockingQueue<Integer> computed = new ArrayBlockingQueue<Integer>(nframes);
+        // the last timestep any spec includes
+        int last = -1;
+        for (OutputSpec spec : specs) {
+            last = Math.max(last, (spec.timestep >= 0) ? spec.timestep : ntimesteps-1);
+        }
+        final int lastTimestep = last;
+
+        ExecutorService pool = Executors.newFixedThreadPool(2 + nwriters);
+        CompletionService<Object> stages = new ExecutorCompletionService<Object>(pool);
+
+        // parse
+        stages.submit(new Callable<Object>() {
+                public Object call() throws Exception {
+                    for (int time=resumeTimestep; time<=lastTimestep; ++time) {
+                        if (outputFilenames(specs, time) == null) {
+                            if (!skip63Timestep(r63, time)) {
+                                if (!incremental) { throw endsEarly(filename, time); }
+                                break;
+                            }
+                            finishTimestep(specs, time);
+                            continue;
+                        }
+                        vertexFrames.acquire(time);
+                        triangleFrames.acquire(time);
+                        if (!read63Timestep(r63, time)) {
+                            if (!incremental) { throw endsEarly(filename, time); }
+                            break;
+                        }
+                        parsed.put(time);
+                    }
+                    r63.close();
+                    parsed.put(END_OF_SERIES);
+                    return null;
+                }
+            });
+
+        // compute
+        stages.submit(new Callable<Object>() {
+                public Object call() throws Exception {
+                    int time;
+                    while ((time = parsed.take()) != END_OF_SERIES) {
+                        computeTimestep(kernel, vertexFrames, triangleFrames, time);
+                        computed.put(time);
+                    }
+                    for (int w=0; w<nwriters; ++w) {
+                        computed.put(END_OF_SERIES);
+                    }
+                    return null;
+                }
+            });
+
+        // write
+        for (int w=0; w<nwriters; ++w) {
+            stages.submit(new Callable<Object>() {
+                    public Object call() throws Exception {
+                        int time;
+                        while ((time = computed.take()) != END_OF_SERIES) {
+                            String filenames[] = outputFilenames(specs, time);
+                            // the writers already keep the processors busy
+                            int counts[] = writeOutputs(specs, filenames, time, false, 1);
+                            for (int s=0; s<specs.length; ++s) {
+                                if (filenames[s] != null) {
+                                    output("  %s: [%1d triangles]\n", filenames[s], counts[s]);
+                                }
+                            }
+                            vertexFrames.release(time);
+                            triangleFrames.release(time);
+                            finishTimestep(specs, time);
+                        }
+                        return null;
+                    }
+                });
+        }
+
+        try {
+            for (int i=0; i<2+nwriters; ++i) {
+                stages.take().get();
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception)e.getCause();
+            }
+            throw e;
+        } finally {
+            pool.shutdownNow();
+        }
     }
 
     public static void main(String args[]) throws Exception {
@@ -541,6 +1883,23 @@ public class AcToShape {
         boolean clipcoast = false;
         double clipcoast_cliplevel = 0.0;
         boolean interpolate = false;
+        File scratchDir = null;
+        boolean outOfCore = false;
+        int pipeline = 0;
+        boolean reorder = false;
+        boolean spatialIndex = false;
+        int mvtMinZoom = -1, mvtMaxZoom = -1;
+        double rasterCellsize = 0;
+        boolean rasterMax = false;
+        String format = FORMAT_SHP;
+        long maxShapefileBytes = ShapefileExporter.MAX_FILE_BYTES;
+        ArrayList<String> outputs = new ArrayList<String>();
+        boolean incremental = false;
+        long maxMemory = 0;
+        boolean vector = false;
+        double deltaTolerance = -1;
+        int refineDepth = 0;
+        double refineThreshold = 0;
 
         while (i<args.length && args[i].startsWith("-")) {
             if (args[i].equals("--box") || args[i].equals("-b")) {
@@ -568,6 +1927,59 @@ public class AcToShape {
             } else if (args[i].equals("--interpolate") || args[i].equals("-i")) {
                 ++i;
                 interpolate = true;
+            } else if (args[i].equals("--outofcore") || args[i].equals("-O")) {
+                ++i;
+                outOfCore = true;
+                scratchDir = new File(args[i++]);
+            } else if (args[i].equals("--hilbert") || args[i].equals("-H")) {
+                ++i;
+                reorder = true;
+            } else if (args[i].equals("--qix") || args[i].equals("-x")) {
+                ++i;
+                spatialIndex = true;
+            } else if (args[i].equals("--mvt") || args[i].equals("-m")) {
+                ++i;
+                mvtMinZoom = Integer.parseInt(args[i++]);
+                mvtMaxZoom = Integer.parseInt(args[i++]);
+            } else if (args[i].equals("--format") || args[i].equals("-f")) {
+                ++i;
+                format = args[i++];
+                if (!(format.equals(FORMAT_SHP) || format.equals(FORMAT_FGB) || format.equals(FORMAT_GEOJSONSEQ))) {
+                    System.out.printf("unknown output format: %s (should be %s, %s, or %s)\n",
+                                      format, FORMAT_SHP, FORMAT_FGB, FORMAT_GEOJSONSEQ);
+                    System.exit(0);
+                }
+            } else if (args[i].equals("--raster") || args[i].equals("-r")) {
+                ++i;
+                rasterCellsize = Double.parseDouble(args[i++]);
+            } else if (args[i].equals("--rastermax") || args[i].equals("-R")) {
+                ++i;
+                rasterMax = true;
+            } else if (args[i].equals("--output") || args[i].equals("-o")) {
+                ++i;
+                outputs.add(args[i++]);
+            } else if (args[i].equals("--refine") || args[i].equals("-A")) {
+                ++i;
+                refineDepth = Integer.parseInt(args[i++]);
+                refineThreshold = Double.parseDouble(args[i++]);
+            } else if (args[i].equals("--delta") || args[i].equals("-D")) {
+                ++i;
+                deltaTolerance = Double.parseDouble(args[i++]);
+            } else if (args[i].equals("--incremental") || args[i].equals("-I")) {
+                ++i;
+                incremental = true;
+            } else if (args[i].equals("--maxsize") || args[i].equals("-Z")) {
+                ++i;
+                maxShapefileBytes = Long.parseLong(args[i++]);
+            } else if (args[i].equals("--pipeline") || args[i].equals("-P")) {
+                ++i;
+                pipeline = Integer.parseInt(args[i++]);
+            } else if (args[i].equals("--max-memory") || args[i].equals("-M")) {
+                ++i;
+                maxMemory = MemoryPlan.parseBytes(args[i++]);
+            } else if (args[i].equals("--vector") || args[i].equals("-V")) {
+                ++i;
+                vector = true;
             } else if (args[i].equals("--clipCoast") || args[i].equals("--clipcoast") || args[i].equals("-c")) {
                 ++i;
                 clipcoast = true;
@@ -587,14 +1999,31 @@ public class AcToShape {
             }
         }
 
-        if (args.length - i != 3) {
+        if (args.length - i != (outputs.isEmpty() ? 3 : 2)) {
             System.out.printf("usage: actoshape [OPTIONS] GRIDFILE ETSFILE SHAPEFILE\n");
+            System.out.printf("       actoshape [OPTIONS] --output SPEC [--output SPEC ...] GRIDFILE ETSFILE\n");
             System.exit(0);
         }
 
         String grdfile = args[i++];
         String file63  = args[i++];
-        String shpfile = args[i++];
+
+        // the -c, -i, and -t options apply to every output that doesn't override them
+        OutputSpec defaults = new OutputSpec(null, timestep, clipcoast, clipcoast_cliplevel, interpolate);
+        OutputSpec specs[];
+        if (outputs.isEmpty()) {
+            specs = new OutputSpec[] { new OutputSpec(args[i++], timestep, clipcoast, clipcoast_cliplevel, interpolate) };
+        } else {
+            specs = new OutputSpec[outputs.size()];
+            for (int s=0; s<specs.length; ++s) {
+                try {
+                    specs[s] = OutputSpec.parse(outputs.get(s), defaults);
+                } catch (IllegalArgumentException e) {
+                    System.out.printf("%s\n", e.getMessage());
+                    System.exit(0);
+                }
+            }
+        }
 
         if (!(new File(grdfile)).exists()) {
             System.out.printf("Can't read grid file '%s'\n", grdfile);
@@ -606,74 +2035,244 @@ public class AcToShape {
             System.exit(0);
         }
 
-        AcToShape tm = new AcToShape(debugfields);
-
-        tm.setVerbose(verbose);
-        tm.setClipcoast(clipcoast);
-        tm.setInterpolate(interpolate);
-        if (clipcoast) {
-            tm.setClipcoastCliplevel(clipcoast_cliplevel);
+        if (refineDepth > 0 && pipeline > 0) {
+            // refining looks at the levels of every timestep first
+            System.out.printf("--refine can't be used with --pipeline\n");
+            System.exit(0);
         }
 
-        if (box != null) {
-            tm.setBox(box);
+        if (deltaTolerance >= 0) {
+            if (!format.equals(FORMAT_SHP) || mvtMaxZoom >= 0 || rasterCellsize > 0) {
+                System.out.printf("--delta can only be used with shapefile output\n");
+                System.exit(0);
+            }
+            if (pipeline > 1) {
+                // each change file depends on the one before
+                output(verbose, "--delta writes time steps in order; using 1 pipeline writer\n");
+                pipeline = 1;
+            }
+            if (incremental && refineDepth > 0) {
+                // the refined mesh depends on the timesteps loaded, so the
+                // triangles of a resumed series wouldn't match those before
+                System.out.printf("--delta can't be used with both --incremental and --refine\n");
+                System.exit(0);
+            }
         }
-        /*
-          if (nowater) {
-          tm.setNoWater(nowater);
-          }
-        */
 
-        output(verbose, "loading grid file %s:", grdfile);
-        tm.loadGridFile(grdfile);
-        output(verbose, " done.\n");
-        output(verbose, "loading .63 file %s:", file63);
-        tm.load63File(file63);
-        output(verbose, " done.\n");
+        if (vector && !LevelKernel.useVector()) {
+            // the actoshape script adds the module; a plain java command doesn't
+            output(verbose, "--vector needs the java option --add-modules jdk.incubator.vector; using the scalar loops\n");
+        }
 
-        if (box != null) {
-            output(verbose, "clipping to specified box ...");
-            tm.clipToBox();
-            output(verbose, " new mesh has %1d vertices, %1d triangles.\n", tm.vertices.length-1, tm.triangles.length-1);
+        if (maxMemory > 0) {
+            // size the run before loading anything, and if it won't fit,
+            // switch to a strategy that will or give up now
+            if (maxMemory > Runtime.getRuntime().maxMemory()) {
+                maxMemory = Runtime.getRuntime().maxMemory();
+                output(verbose, "--max-memory is more than the maximum heap; using %s\n", MemoryPlan.formatBytes(maxMemory));
+            }
+            MemoryPlan plan = MemoryPlan.read(grdfile, file63, box, rasterCellsize > 0);
+            plan.subdivide(subdivide);
+            if (rasterCellsize > 0) {
+                plan.setRaster(rasterCellsize);
+            }
+            String requested = (pipeline > 0) ? MemoryPlan.STRATEGY_PIPELINE
+                : outOfCore ? MemoryPlan.STRATEGY_OUT_OF_CORE : MemoryPlan.STRATEGY_IN_CORE;
+            int nwriters = Math.max(pipeline, 1);
+            String strategy = plan.choose(requested, maxMemory, nwriters, !rasterMax && refineDepth == 0);
+            output(verbose, "estimated memory for %1d vertices, %1d triangles, %1d timesteps: %s %s",
+                   plan.nvertices + plan.nderived, plan.ntriangles, plan.ntimesteps,
+                   MemoryPlan.formatBytes(plan.bytes(requested, nwriters)), requested);
+            if (strategy == null) {
+                output(verbose, "\n");
+                System.out.printf("not enough memory: needs at least %s (%s), but --max-memory is %s\n",
+                                  MemoryPlan.formatBytes(plan.bytes(MemoryPlan.STRATEGY_OUT_OF_CORE, nwriters)),
+                                  MemoryPlan.STRATEGY_OUT_OF_CORE, MemoryPlan.formatBytes(maxMemory));
+                System.exit(0);
+            }
+            if (strategy.equals(requested)) {
+                output(verbose, ".\n");
+            } else {
+                output(verbose, "; running %s instead (%s).\n", strategy, MemoryPlan.formatBytes(plan.bytes(strategy, nwriters)));
+                if (strategy.equals(MemoryPlan.STRATEGY_PIPELINE)) {
+                    pipeline = nwriters;
+                } else {
+                    pipeline = 0;
+                    outOfCore = true;
+                }
+            }
         }
 
-        if (subdivide > 0) {
-            output(verbose, "subdividing:");
-            for (int j=0; j<subdivide; ++j) {
-                output(verbose, " %1d", j+1);
-                tm.subdivide();
+        AcToShape tm = new AcToShape(debugfields);
+
+        try {
+            tm.setVerbose(verbose);
+            tm.setClipcoast(clipcoast);
+            tm.setInterpolate(interpolate);
+            tm.setSpatialIndex(spatialIndex);
+            tm.setFormat(format);
+            tm.setMaxShapefileBytes(maxShapefileBytes);
+            if (rasterCellsize > 0) {
+                tm.setRaster(rasterCellsize);
+            } else if (rasterMax) {
+                System.out.printf("--rastermax requires --raster\n");
+                System.exit(0);
+            }
+            if (rasterMax) {
+                if (incremental) {
+                    System.out.printf("--incremental can't be used with --rastermax\n");
+                    System.exit(0);
+                }
+                // needs every timestep at once
+                pipeline = 0;
+            }
+            if (mvtMaxZoom >= 0) {
+                tm.setVectorTiles(mvtMinZoom, mvtMaxZoom);
+            }
+            if (clipcoast) {
+                tm.setClipcoastCliplevel(clipcoast_cliplevel);
+            }
+            if (deltaTolerance >= 0) {
+                tm.setDelta(deltaTolerance);
+                for (OutputSpec spec : specs) {
+                    if (spec.timestep < 0) {
+                        spec.delta = new DeltaFrame(tm, deltaTolerance);
+                    }
+                }
+            }
+
+            if (outOfCore) {
+                tm.setOutOfCore(scratchDir);
+            }
+
+            if (box != null) {
+                tm.setBox(box);
+            }
+            /*
+              if (nowater) {
+              tm.setNoWater(nowater);
+              }
+            */
+
+            if (incremental) {
+                // everything besides the OutputSpecs that the outputs depend on
+                tm.setIncremental(String.format("box=%s subdivide=%d hilbert=%b debugfields=%b format=%s mvt=%d,%d raster=%s maxsize=%d qix=%b delta=%s refine=%d,%s",
+                                                (box == null) ? "none" : String.format("%s,%s,%s,%s", box.xmin, box.ymin, box.xmax, box.ymax),
+                                                subdivide, reorder, debugfields, format, mvtMinZoom, mvtMaxZoom,
+                                                rasterCellsize, maxShapefileBytes, spatialIndex, deltaTolerance,
+                                                refineDepth, refineThreshold));
+                int first = tm.resume(grdfile, file63, specs);
+                boolean todo = false;
+                for (OutputSpec spec : specs) {
+                    todo = todo || spec.timestep < 0 || spec.firstTimestep <= spec.timestep;
+                }
+                if (!todo) {
+                    output(verbose, "outputs are up to date\n");
+                    return;
+                }
+                if (first > 0) {
+                    output(verbose, "resuming after time step %1d\n", first);
+                }
             }
+
+            output(verbose, "loading grid file %s:", grdfile);
+            tm.loadGridFile(grdfile);
             output(verbose, " done.\n");
-        }
+            if (reorder) {
+                output(verbose, "reordering mesh along a Hilbert curve...");
+                tm.reorder();
+                output(verbose, " done.\n");
+            }
+            if (pipeline == 0) {
+                output(verbose, "loading .63 file %s:", file63);
+                tm.load63File(file63);
+                output(verbose, " done.\n");
+                if (tm.navailable <= tm.resumeTimestep) {
+                    output(verbose, "no new time steps in %s\n", file63);
+                    return;
+                }
+            }
+
+            if (subdivide > 0) {
+                output(verbose, "subdividing:");
+                for (int j=0; j<subdivide; ++j) {
+                    output(verbose, " %1d", j+1);
+                    tm.subdivide();
+                }
+                output(verbose, " done.\n");
+            }
+
+            if (refineDepth > 0) {
+                output(verbose, "refining:");
+                int n = tm.refine(refineDepth, refineThreshold, specs);
+                output(verbose, " %1d triangles split, %1d triangles. done.\n", n, tm.triangles.length-1);
+            }
 
-        output(verbose, "computing water levels for each triangle...");
-        tm.compute();
-        output(verbose, " done.\n");
+            if (pipeline > 0) {
+                output(verbose, "processing .63 file %s with %1d shapefile writers:\n", file63, pipeline);
+                tm.runPipeline(file63, specs, pipeline);
+                return;
+            }
 
-        if (timestep >= 0) {
-            // a time was explicitly specified, so write a single shapefile for that timestep
-            output(verbose, "writing shapefile %s for time step %1d: ", shpfile, timestep+1);
-            tm.writeShp(shpfile, timestep);
-            output(verbose, " [%1d triangles]\n", tm.num_triangles_exported);
-        } else {
-            // No timestep was specified, so write a series of shapefiles, one for each timestep in the simulation.
-            if (tm.ntimesteps == 1) {
-                // If there is only one timestep in the simulation, use the shapefile name given on the command line directly
-                output(verbose, "writing shapefile %s: ", shpfile);
-                tm.writeShp(shpfile, 0);
-                output(verbose, " [%1d triangles]\n", tm.num_triangles_exported);
+            output(verbose, "computing water levels for each triangle...");
+            tm.compute();
+            output(verbose, " done.\n");
+
+            if (rasterMax) {
+                for (OutputSpec spec : specs) {
+                    output(verbose, "writing maximum floodlevel raster %s for %1d timesteps: ", rasterFilename(spec.filename), tm.ntimesteps);
+                    tm.writeMaxRaster(spec);
+                    output(verbose, " done.\n");
+                }
+                return;
+            }
+
+            if (specs.length == 1 && (specs[0].timestep >= 0 || tm.ntimesteps == 1)) {
+                // a single output for a single timestep, written under the name given
+                OutputSpec spec = specs[0];
+                int time = Math.max(spec.timestep, 0);
+                if (time >= tm.navailable) {
+                    output(verbose, "time step %1d is not in %s yet\n", time+1, file63);
+                    return;
+                }
+                if (spec.timestep >= 0) {
+                    output(verbose, "writing %s %s for time step %1d: ", tm.outputKind(), spec.filename, spec.timestep+1);
+                } else {
+                    output(verbose, "writing %s %s: ", tm.outputKind(), spec.filename);
+                }
+                int n = tm.writeOutputs(specs, new String[] { spec.filename }, time, verbose)[0];
+                output(verbose, " [%1d triangles]\n", n);
+                for (int t=0; t<=time; ++t) {
+                    tm.finishTimestep(specs, t);
+                }
             } else {
-                // Otherwise, construct a series of filenames using the given name as base.
-                String filenameFormat = new String(shpfile);
-                filenameFormat = filenameFormat.replaceAll("\\.shp$", "").replaceAll("\\.SHP$", "") + "-step-%05d.shp";
-                output(verbose, "writing shapefiles for %1d timesteps:\n", tm.ntimesteps);
-                for (timestep=0; timestep<tm.ntimesteps; ++timestep) {
-                    String filename = String.format(filenameFormat, timestep+1);
-                    output(verbose, "  %s: ", filename);
-                    tm.writeShp(filename, timestep);
-                    output(verbose, " [%1d triangles]\n", tm.num_triangles_exported);
+                // Otherwise write each timestep that some output includes, constructing
+                // a series of filenames for outputs that include every timestep.
+                output(verbose, "writing %s for %1d timesteps:\n", tm.outputKind(), tm.ntimesteps);
+                for (timestep=tm.resumeTimestep; timestep<tm.navailable; ++timestep) {
+                    String filenames[] = tm.outputFilenames(specs, timestep);
+                    if (filenames == null) {
+                        tm.finishTimestep(specs, timestep);
+                        continue;
+                    }
+                    if (specs.length == 1) {
+                        output(verbose, "  %s: ", filenames[0]);
+                        int n = tm.writeOutputs(specs, filenames, timestep, verbose)[0];
+                        output(verbose, " [%1d triangles]\n", n);
+                    } else {
+                        int counts[] = tm.writeOutputs(specs, filenames, timestep, false);
+                        for (int s=0; s<specs.length; ++s) {
+                            if (filenames[s] != null) {
+                                output(verbose, "  %s: [%1d triangles]\n", filenames[s], counts[s]);
+                            }
+                        }
+                    }
+                    tm.finishTimestep(specs, timestep);
                 }
             }
+        } finally {
+            // unmaps and removes the out-of-core scratch file, if there is one
+            tm.close();
         }
 
     }
@@ -0,0 +1,248 @@
+/*
+ * This file is part of AcToShape
+ * by Mark Phillips
+ * mphillip@unca.edu
+ *
+ * Copyright (c) 2009  University of North Carolina at Asheville
+ * Licensed under the RENCI Open Source Software License v. 1.0.
+ * See the file LICENSE.txt for details.
+ */
+
+/**
+ * CompressedInput opens the grid and .63 input files, transparently
+ * decompressing them if they are compressed with gzip, bzip2, or xz.
+ * The compression format is recognized from the first few bytes of
+ * the file, not from its name.
+ *
+ * Decompression is done in a separate thread (and, for bzip2 and xz,
+ * in a separate "bzip2 -dc" or "xz -dc" process), which reads ahead
+ * of the parser into a queue of large buffers, so that decompressing
+ * the file overlaps with parsing it.
+ */
+
+package edu.unca.nemac.gis;
+
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.GZIPInputStream;
+
+class CompressedInput {
+
+    /**
+     * Size of each buffer handed from the decompressing thread to the
+     * parser, and the number of buffers it may read ahead.
+     */
+    private static final int CHUNK_BYTES  = 1 << 20;
+    private static final int CHUNKS_AHEAD = 16;
+
+    private static final byte GZIP_MAGIC[]  = { (byte)0x1f, (byte)0x8b };
+    private static final byte BZIP2_MAGIC[] = { 'B', 'Z', 'h' };
+    private static final byte XZ_MAGIC[]    = { (byte)0xfd, '7', 'z', 'X', 'Z', 0 };
+
+    /**
+     * Open the named file for reading line by line, decompressing it
+     * if necessary.
+     */
+    public static BufferedReader openReader(String filename) throws IOException {
+        return new BufferedReader(new InputStreamReader(open(filename)), 1 << 16);
+    }
+
+    /**
+     * Open the named file, decompressing it if necessary.
+     */
+    public static InputStream open(String filename) throws IOException {
+        byte magic[] = new byte[XZ_MAGIC.length];
+        FileInputStream in = new FileInputStream(filename);
+        int n = 0, r;
+        while (n < magic.length && (r = in.read(magic, n, magic.length - n)) > 0) {
+            n += r;
+        }
+        in.close();
+
+        if (startsWith(magic, n, GZIP_MAGIC)) {
+            return new ReadAheadStream(new GZIPInputStream(new FileInputStream(filename), 1 << 16), null);
+        }
+        if (startsWith(magic, n, BZIP2_MAGIC)) {
+            return decompressor("bzip2", filename);
+        }
+        if (startsWith(magic, n, XZ_MAGIC)) {
+            return decompressor("xz", filename);
+        }
+        return new FileInputStream(filename);
+    }
+
+    /**
+     * Open the named file, decompressing it if necessary, positioned at
+     * the given byte offset of its (decompressed) contents.  A file that
+     * is not compressed is positioned directly; a compressed one has to
+     * be decompressed up to the offset, but that is much faster than
+     * parsing it that far.
+     */
+    public static InputStream open(String filename, long offset) throws IOException {
+        InputStream in = open(filename);
+        if (offset == 0) {
+            return in;
+        }
+        if (in instanceof FileInputStream) {
+            ((FileInputStream)in).getChannel().position(offset);
+            return in;
+        }
+        byte skipped[] = new byte[1 << 16];
+        for (long n=offset; n>0; ) {
+            int r = in.read(skipped, 0, (int)Math.min(n, skipped.length));
+            if (r < 0) {
+                in.close();
+                throw new EOFException(String.format("%s: file is shorter than %d bytes", filename, offset));
+            }
+            n -= r;
+        }
+        return in;
+    }
+
+    private static boolean startsWith(byte buf[], int n, byte prefix[]) {
+        if (n < prefix.length) { return false; }
+        for (int i=0; i<prefix.length; ++i) {
+            if (buf[i] != prefix[i]) { return false; }
+        }
+        return true;
+    }
+
+    /**
+     * Start an external decompression program on the named file, and
+     * return a stream that reads its output.
+     */
+    private static InputStream decompressor(String program, String filename) throws IOException {
+        ProcessBuilder pb = new ProcessBuilder(program, "-dc", filename);
+        pb.redirectError(ProcessBuilder.Redirect.INHERIT);
+        Process process;
+        try {
+            process = pb.start();
+        } catch (IOException e) {
+            throw new IOException(String.format("%s: the '%s' program is needed to read this compressed file", filename, program), e);
+        }
+        return new ReadAheadStream(process.getInputStream(), process);
+    }
+
+    /**
+     * An InputStream that reads another InputStream in a background
+     * thread, CHUNK_BYTES at a time, keeping up to CHUNKS_AHEAD
+     * buffers ready for the reader.  Errors from the underlying stream
+     * (or a nonzero exit status from the process producing it) are
+     * reported to the reader when it reaches the point where they
+     * occurred.  The underlying stream is closed when the thread stops,
+     * however it stops, and close() waits for that.
+     */
+    static class ReadAheadStream extends InputStream {
+
+        private static final byte END[] = new byte[0];
+
+        private final BlockingQueue<byte[]> chunks = new ArrayBlockingQueue<byte[]>(CHUNKS_AHEAD);
+        private volatile IOException error = null;
+        private volatile boolean closed = false;
+        private final Thread thread;
+        private final Process process;
+        private byte chunk[] = new byte[0];
+        private int pos = 0;
+        private boolean eof = false;
+
+        ReadAheadStream(final InputStream in, final Process process) {
+            this.process = process;
+            thread = new Thread(new Runnable() {
+                    public void run() {
+                        try {
+                            while (true) {
+                                byte buf[] = new byte[CHUNK_BYTES];
+                                int n = 0, r = 0;
+                                while (n < buf.length && (r = in.read(buf, n, buf.length - n)) >= 0) {
+                                    n += r;
+                                }
+                                if (n > 0) {
+                                    chunks.put((n < buf.length) ? Arrays.copyOf(buf, n) : buf);
+                                }
+                                if (r < 0) { break; }
+                            }
+                            in.close();
+                            if (process != null && process.waitFor() != 0) {
+                                error = new IOException("decompression failed with exit status " + process.exitValue());
+                            }
+                        } catch (IOException e) {
+                            error = e;
+                        } catch (InterruptedException e) {
+                            // the reader closed the stream
+                        } catch (Throwable e) {
+                            error = new IOException("error reading compressed input", e);
+                        } finally {
+                            try {
+                                in.close();
+                            } catch (IOException e) {
+                                if (error == null) { error = e; }
+                            }
+                            // always mark the end, so the reader never waits forever
+                            if (!closed) {
+                                try {
+                                    chunks.put(END);
+                                } catch (InterruptedException e) {
+                                    // the reader closed the stream
+                                }
+                            }
+                        }
+                    }
+                }, "actoshape-decompress");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        public int read() throws IOException {
+            byte b[] = new byte[1];
+            int n = read(b, 0, 1);
+            return (n < 0) ? -1 : (b[0] & 0xff);
+        }
+
+        public int read(byte b[], int off, int len) throws IOException {
+            if (len == 0) { return 0; }
+            if (pos == chunk.length) {
+                if (eof) { return -1; }
+                try {
+                    chunk = chunks.take();
+                } catch (InterruptedException e) {
+                    throw new IOException("interrupted while reading compressed input");
+                }
+                pos = 0;
+                if (chunk == END) {
+                    eof = true;
+                    if (error != null) { throw error; }
+                    return -1;
+                }
+            }
+            int n = Math.min(len, chunk.length - pos);
+            System.arraycopy(chunk, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+
+        public void close() throws IOException {
+            closed = true;
+            thread.interrupt();
+            if (process != null) {
+                process.destroy();
+            }
+            // unblock the thread if it is waiting for room in the queue,
+            // and wait for it to close the underlying stream
+            chunks.clear();
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,193 @@
+/*
+ * This file is part of AcToShape
+ * by Mark Phillips
+ * mphillip@unca.edu
+ *
+ * Copyright (c) 2009  University of North Carolina at Asheville
+ * Licensed under the RENCI Open Source Software License v. 1.0.
+ * See the file LICENSE.txt for details.
+ */
+
+/**
+ * DeltaFrame keeps track of what has been written so far in a series
+ * of outputs written as delta frames (--delta): a keyframe holding
+ * every wet triangle at the first timestep written, followed by change
+ * files holding only the triangles that became wet or dry, or whose
+ * floodlevel moved by more than a tolerance, since they were last
+ * written.  Applying the change files in order to the keyframe gives
+ * every triangle's floodlevel to within the tolerance.
+ *
+ * The floodlevel last written for each triangle is kept by triangle
+ * slot (NaN for triangles that were dry), and compared with the
+ * triangle's own average floodlevel, so that changes that are each
+ * smaller than the tolerance can't add up to more than it.  Timesteps
+ * must be written in order.  Each record written gets a change kind:
+ * CHANGE_KEY in the keyframe, and CHANGE_WET, CHANGE_DRY, or
+ * CHANGE_LEVEL in the change files.
+ *
+ * In an incremental run, what has been written is saved in a file
+ * beside the run's state file, so that a later run can carry on with
+ * change files rather than starting again with a keyframe.
+ */
+
+package edu.unca.nemac.gis;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+class DeltaFrame {
+
+    public static final String CHANGE_KEY   = "key";       // in the keyframe
+    public static final String CHANGE_WET   = "wet";       // became wet
+    public static final String CHANGE_DRY   = "dry";       // became dry
+    public static final String CHANGE_LEVEL = "changed";   // floodlevel moved
+
+    private static final int MAGIC = 0x41634466;    // "AcDf"
+
+    private AcToShape mesh;
+    private double tolerance;
+    private double written[] = null;
+    private int lastTime = -1;      // the last timestep written
+
+    public DeltaFrame(AcToShape mesh, double tolerance) {
+        this.mesh      = mesh;
+        this.tolerance = tolerance;
+    }
+
+    /**
+     * Return true if the next timestep is to be written as a keyframe,
+     * which is the case until one has been.
+     */
+    public synchronized boolean keyframe() {
+        return written == null;
+    }
+
+    /**
+     * Note that a keyframe has been written for a timestep, with every
+     * wet triangle in it.
+     */
+    public synchronized void wroteKeyframe(int time) {
+        lastTime = time;
+        written = new double[mesh.triangles.length];
+        Arrays.fill(written, Double.NaN);
+        for (int i=1; i<mesh.triangles.length; ++i) {
+            Triangle t = mesh.triangles[i];
+            if (t != null && mesh.isExported(t, time)) {
+                written[i] = mesh.floodlevel(t, time);
+            }
+        }
+    }
+
+    /**
+     * List in changed[] the slots of the triangles that must be written
+     * in the change file for a timestep, and in kinds[], by slot, the
+     * kind of change for each, and count them as written; returns the
+     * number of them.
+     */
+    public synchronized int select(int time, int changed[], String kinds[]) throws IOException {
+        if (written.length != mesh.triangles.length) {
+            throw new IOException("the saved delta frame state is for a different mesh");
+        }
+        lastTime = time;
+        int n = 0;
+        for (int i=1; i<mesh.triangles.length; ++i) {
+            Triangle t = mesh.triangles[i];
+            if (t == null) { continue; }
+            if (mesh.isExported(t, time)) {
+                double f = mesh.floodlevel(t, time);
+                if (Double.isNaN(written[i])) {
+                    kinds[i] = CHANGE_WET;
+                } else if (Math.abs(f - written[i]) > tolerance) {
+                    kinds[i] = CHANGE_LEVEL;
+                } else {
+                    continue;
+                }
+                written[i] = f;
+                changed[n++] = i;
+            } else if (!Double.isNaN(written[i])) {
+                written[i] = Double.NaN;
+                kinds[i] = CHANGE_DRY;
+                changed[n++] = i;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Return the name of the file in which the state is saved for an
+     * output.
+     */
+    public static String filename(OutputSpec spec) {
+        return RunState.filename(spec) + ".delta";
+    }
+
+    /**
+     * Save what has been written, as of the first steps timesteps, to
+     * a file, replacing it all at once.  Returns false, saving nothing,
+     * if a later timestep has been written already, since the state
+     * would then not be the one for steps.
+     */
+    public synchronized boolean save(String filename, int steps) throws IOException {
+        if (lastTime >= steps) {
+            return false;
+        }
+        File tmp = new File(filename + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        out.writeInt(MAGIC);
+        out.writeInt(steps);
+        out.writeInt(lastTime);
+        out.writeInt((written == null) ? -1 : written.length);
+        if (written != null) {
+            for (double f : written) {
+                out.writeDouble(f);
+            }
+        }
+        out.close();
+        Files.move(tmp.toPath(), (new File(filename)).toPath(), StandardCopyOption.REPLACE_EXISTING);
+        return true;
+    }
+
+    /**
+     * Restore the state saved as of the first steps timesteps; returns
+     * false if there is no such state.
+     */
+    public synchronized boolean restore(String filename, int steps) {
+        if (!(new File(filename)).exists()) {
+            return false;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(filename)));
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != steps) {
+                    return false;
+                }
+                int time = in.readInt();
+                int length = in.readInt();
+                double w[] = null;
+                if (length >= 0) {
+                    w = new double[length];
+                    for (int i=0; i<length; ++i) {
+                        w[i] = in.readDouble();
+                    }
+                }
+                lastTime = time;
+                written  = w;
+                return true;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+}
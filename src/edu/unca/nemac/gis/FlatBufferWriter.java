@@ -0,0 +1,250 @@
+/*
+ * This file is part of AcToShape
+ * by Mark Phillips
+ * mphillip@unca.edu
+ *
+ * Copyright (c) 2009  University of North Carolina at Asheville
+ * Licensed under the RENCI Open Source Software License v. 1.0.
+ * See the file LICENSE.txt for details.
+ */
+
+/**
+ * FlatBufferWriter is a minimal encoder for the FlatBuffers binary
+ * format, just capable enough to write the FlatGeobuf header and
+ * feature tables.
+ *
+ * Unlike the usual FlatBuffers builders, which work from the end of
+ * the buffer backward, this one writes front to back: a table is
+ * written first, and the strings, vectors, and tables it refers to
+ * are written after it, with patch() filling in the table's reference
+ * once the position of the referenced object is known.  (FlatBuffers
+ * references always point forward, so this is the order they must
+ * be in.)  Everything is aligned relative to the start of the
+ * buffer, as FlatBuffers verifiers require.
+ */
+
+package edu.unca.nemac.gis;
+
+class FlatBufferWriter {
+
+    private byte buf[] = new byte[256];
+    private int pos = 0;
+
+    public FlatBufferWriter() {
+        reset();
+    }
+
+    /**
+     * Start a new buffer, reserving room for the reference to its root table.
+     */
+    public void reset() {
+        pos = 0;
+        putInt(0);
+    }
+
+    public int position() {
+        return pos;
+    }
+
+    public byte[] buffer() {
+        return buf;
+    }
+
+    /**
+     * Fill in the reference to the root table.
+     */
+    public void finish(int table) {
+        patch(0, table);
+    }
+
+    /**
+     * Fill in the reference at position 'field' to point to the object at position 'target'.
+     */
+    public void patch(int field, int target) {
+        int v = target - field;
+        for (int i=0; i<4; ++i) {
+            buf[field+i] = (byte)(v >>> (8*i));
+        }
+    }
+
+    private void ensure(int n) {
+        if (pos + n > buf.length) {
+            byte b[] = new byte[Math.max(pos + n, 2*buf.length)];
+            System.arraycopy(buf, 0, b, 0, pos);
+            buf = b;
+        }
+    }
+
+    // pad with zeros until pos % align == rem
+    private void pad(int align, int rem) {
+        while (pos % align != rem) {
+            putByte(0);
+        }
+    }
+
+    private void putByte(int v) {
+        ensure(1);
+        buf[pos++] = (byte)v;
+    }
+
+    private void putShort(int v) {
+        ensure(2);
+        buf[pos++] = (byte)v;
+        buf[pos++] = (byte)(v >>> 8);
+    }
+
+    private void putInt(int v) {
+        ensure(4);
+        for (int i=0; i<4; ++i) {
+            buf[pos++] = (byte)(v >>> (8*i));
+        }
+    }
+
+    private void putLong(long v) {
+        ensure(8);
+        for (int i=0; i<8; ++i) {
+            buf[pos++] = (byte)(v >>> (8*i));
+        }
+    }
+
+    /**
+     * Write a string, returning its position.
+     */
+    public int string(String s) throws Exception {
+        byte b[] = s.getBytes("UTF-8");
+        pad(4, 0);
+        int start = pos;
+        putInt(b.length);
+        ensure(b.length + 1);
+        System.arraycopy(b, 0, buf, pos, b.length);
+        pos += b.length;
+        putByte(0);
+        return start;
+    }
+
+    /**
+     * Write a vector of n doubles, returning its position.
+     */
+    public int doubleVector(double v[], int n) {
+        pad(8, 4);
+        int start = pos;
+        putInt(n);
+        for (int i=0; i<n; ++i) {
+            putLong(Double.doubleToLongBits(v[i]));
+        }
+        return start;
+    }
+
+    /**
+     * Write a vector of n bytes, returning its position.
+     */
+    public int byteVector(byte v[], int n) {
+        pad(4, 0);
+        int start = pos;
+        putInt(n);
+        ensure(n);
+        System.arraycopy(v, 0, buf, pos, n);
+        pos += n;
+        return start;
+    }
+
+    /**
+     * Write a vector of n references, to be filled in with patch(),
+     * returning its position; element i is at position+4+4*i.
+     */
+    public int offsetVector(int n) {
+        pad(4, 0);
+        int start = pos;
+        putInt(n);
+        for (int i=0; i<n; ++i) {
+            putInt(0);
+        }
+        return start;
+    }
+
+    /**
+     * A table being built.  Fields are added with their field ids (their
+     * order in the schema), then end() writes the table.
+     */
+    public class Table {
+        private int nfields;
+        private int sizes[];
+        private long values[];
+        private int positions[];
+
+        Table(int nfields) {
+            this.nfields   = nfields;
+            this.sizes     = new int[nfields];
+            this.values    = new long[nfields];
+            this.positions = new int[nfields];
+        }
+
+        public Table addByte(int id, int v)       { sizes[id] = 1; values[id] = v; return this; }
+        public Table addShort(int id, int v)      { sizes[id] = 2; values[id] = v; return this; }
+        public Table addInt(int id, int v)        { sizes[id] = 4; values[id] = v; return this; }
+        public Table addLong(int id, long v)      { sizes[id] = 8; values[id] = v; return this; }
+        public Table addDouble(int id, double v)  { sizes[id] = 8; values[id] = Double.doubleToLongBits(v); return this; }
+
+        /**
+         * Add a reference field, to be filled in with patch(field(id), target).
+         */
+        public Table addOffset(int id) { sizes[id] = 4; values[id] = 0; return this; }
+
+        /**
+         * Return the position of a field, after end() has been called.
+         */
+        public int field(int id) {
+            return positions[id];
+        }
+
+        /**
+         * Write the table's vtable and the table itself, returning the
+         * position of the table.
+         */
+        public int end() {
+            // Lay out the fields largest first, after the 4-byte vtable
+            // reference, so that each is aligned to its own size.
+            int size = 4;
+            int offsets[] = new int[nfields];
+            for (int s=8; s>=1; s/=2) {
+                for (int id=0; id<nfields; ++id) {
+                    if (sizes[id] == s) {
+                        offsets[id] = size;
+                        size += s;
+                    }
+                }
+            }
+            pad(2, 0);
+            int vtable = pos;
+            putShort(4 + 2*nfields);
+            putShort(size);
+            for (int id=0; id<nfields; ++id) {
+                putShort(offsets[id]);
+            }
+            // the table starts 4 bytes before an 8-byte boundary, so its
+            // 8-byte fields are aligned
+            pad(8, 4);
+            int table = pos;
+            putInt(table - vtable);
+            for (int s=8; s>=1; s/=2) {
+                for (int id=0; id<nfields; ++id) {
+                    if (sizes[id] == s) {
+                        positions[id] = pos;
+                        switch (s) {
+                        case 8: putLong(values[id]); break;
+                        case 4: putInt((int)values[id]); break;
+                        case 2: putShort((int)values[id]); break;
+                        default: putByte((int)values[id]);
+                        }
+                    }
+                }
+            }
+            return table;
+        }
+    }
+
+    public Table table(int nfields) {
+        return new Table(nfields);
+    }
+
+}
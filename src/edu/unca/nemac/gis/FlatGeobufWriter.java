@@ -0,0 +1,314 @@
+/*
+ * This file is part of AcToShape
+ * by Mark Phillips
+ * mphillip@unca.edu
+ *
+ * Copyright (c) 2009  University of North Carolina at Asheville
+ * Licensed under the RENCI Open Source Software License v. 1.0.
+ * See the file LICENSE.txt for details.
+ */
+
+/**
+ * FlatGeobufWriter writes the polygons of one timestep as a FlatGeobuf
+ * (".fgb") file, with its packed Hilbert R-tree spatial index.  Unlike
+ * a shapefile, a FlatGeobuf file has no size limit, and stores its
+ * attribute values in binary.
+ *
+ * Each polygon is encoded as a FlatGeobuf feature as soon as it is
+ * written, and appended to a scratch file next to the output file,
+ * keeping only its bounding box, offset, and size in memory.  When the
+ * writer is closed, the features are sorted along a Hilbert curve
+ * through the centers of their bounding boxes, the R-tree is built
+ * over them in that order, and the header, the tree, and the features
+ * (copied from the scratch file in sorted order) are written to the
+ * output file.
+ */
+
+package edu.unca.nemac.gis;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+class FlatGeobufWriter implements PolygonWriter {
+
+    private static final byte MAGIC[] = { 0x66, 0x67, 0x62, 0x03, 0x66, 0x67, 0x62, 0x00 };
+
+    /**
+     * Number of children of each R-tree node.
+     */
+    private static final int NODE_SIZE = 16;
+    private static final int NODE_BYTES = 40;
+
+    // FlatGeobuf GeometryType and ColumnType values
+    private static final int POLYGON = 3;
+    private static final int INT     = 5;
+    private static final int FLOAT   = 9;
+    private static final int STRING  = 11;
+
+    private static final String COLUMN_NAMES[] = { "timestep", "depth", "floodlevel", "level63", "tindex", "vindices" };
+    private static final int COLUMN_TYPES[]    = { INT,        FLOAT,   FLOAT,        FLOAT,     INT,      STRING };
+
+    private String filename;
+    private boolean debugfields;
+    private File scratchFile;
+    private OutputStream scratch;
+    private long scratchBytes = 0;
+
+    private FlatBufferWriter fb = new FlatBufferWriter();
+    private ByteBuffer props = ByteBuffer.allocate(256).order(ByteOrder.LITTLE_ENDIAN);
+    private double xy[] = new double[10];
+
+    // bounding box, scratch file offset, and size of each feature
+    private double bounds[] = new double[4*1024];
+    private long offsets[] = new long[1024];
+    private int sizes[] = new int[1024];
+    private int nfeatures = 0;
+    private Box extent = new Box(Double.MAX_VALUE, Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE);
+
+    /**
+     * @param filename     name of the .fgb file to write
+     * @param debugfields  whether to include the tindex and vindices attributes
+     */
+    public FlatGeobufWriter(String filename, boolean debugfields) throws IOException {
+        this.filename = filename;
+        this.debugfields = debugfields;
+        File file = new File(filename).getAbsoluteFile();
+        this.scratchFile = File.createTempFile("actoshape", ".fgb.tmp", file.getParentFile());
+        this.scratchFile.deleteOnExit();
+        this.scratch = new BufferedOutputStream(new FileOutputStream(scratchFile), 1 << 16);
+    }
+
+    public int getNumFeatures() {
+        return nfeatures;
+    }
+
+    private int ncolumns() {
+        return debugfields ? COLUMN_NAMES.length : 4;
+    }
+
+    public boolean write(OutputPolygon poly) throws Exception {
+        if (poly.npoints == 0) { return false; }
+        if (nfeatures == offsets.length) {
+            bounds  = Arrays.copyOf(bounds,  2*bounds.length);
+            offsets = Arrays.copyOf(offsets, 2*offsets.length);
+            sizes   = Arrays.copyOf(sizes,   2*sizes.length);
+        }
+
+        double minx = poly.x[0], miny = poly.y[0], maxx = minx, maxy = miny;
+        for (int i=0; i<poly.npoints; ++i) {
+            xy[2*i]   = poly.x[i];
+            xy[2*i+1] = poly.y[i];
+            minx = Math.min(minx, poly.x[i]);
+            miny = Math.min(miny, poly.y[i]);
+            maxx = Math.max(maxx, poly.x[i]);
+            maxy = Math.max(maxy, poly.y[i]);
+        }
+
+        props.clear();
+        props.putShort((short)0).putInt(poly.time);
+        props.putShort((short)1).putFloat((float)poly.depth);
+        props.putShort((short)2).putFloat((float)poly.floodlevel);
+        props.putShort((short)3).putFloat((float)poly.level63);
+        if (debugfields) {
+            byte vindices[] = String.format("%1d,%1d,%1d",
+                                            poly.vindices[0], poly.vindices[1], poly.vindices[2]).getBytes("UTF-8");
+            props.putShort((short)4).putInt(poly.tindex);
+            props.putShort((short)5).putInt(vindices.length).put(vindices);
+        }
+
+        // table Feature { geometry: Geometry; properties: [ubyte]; ... }
+        // table Geometry { ends: [uint]; xy: [double]; ...; type: GeometryType; ... }
+        fb.reset();
+        FlatBufferWriter.Table feature = fb.table(2).addOffset(0).addOffset(1);
+        fb.finish(feature.end());
+        FlatBufferWriter.Table geometry = fb.table(7).addOffset(1).addByte(6, POLYGON);
+        fb.patch(feature.field(0), geometry.end());
+        fb.patch(geometry.field(1), fb.doubleVector(xy, 2*poly.npoints));
+        fb.patch(feature.field(1), fb.byteVector(props.array(), props.position()));
+
+        int size = fb.position();
+        writeInt(scratch, size);
+        scratch.write(fb.buffer(), 0, size);
+
+        int k = 4*nfeatures;
+        bounds[k]   = minx;
+        bounds[k+1] = miny;
+        bounds[k+2] = maxx;
+        bounds[k+3] = maxy;
+        offsets[nfeatures] = scratchBytes;
+        sizes[nfeatures]   = 4 + size;
+        scratchBytes += 4 + size;
+        ++nfeatures;
+
+        extent.xmin = Math.min(extent.xmin, minx);
+        extent.ymin = Math.min(extent.ymin, miny);
+        extent.xmax = Math.max(extent.xmax, maxx);
+        extent.ymax = Math.max(extent.ymax, maxy);
+        return true;
+    }
+
+    private static void writeInt(OutputStream out, int v) throws IOException {
+        out.write(v);
+        out.write(v >>> 8);
+        out.write(v >>> 16);
+        out.write(v >>> 24);
+    }
+
+    public void close() throws Exception {
+        scratch.close();
+
+        // sort the features along a Hilbert curve through their centers
+        int order[] = new int[nfeatures];
+        if (nfeatures > 0) {
+            long keys[] = new long[nfeatures];
+            for (int i=0; i<nfeatures; ++i) {
+                int k = 4*i;
+                keys[i] = (Hilbert.index((bounds[k] + bounds[k+2])/2, (bounds[k+1] + bounds[k+3])/2, extent) << 31) | i;
+            }
+            Arrays.sort(keys);
+            for (int i=0; i<nfeatures; ++i) {
+                order[i] = (int)(keys[i] & 0x7fffffff);
+            }
+        }
+
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(filename), 1 << 16);
+        out.write(MAGIC);
+        byte header[] = header();
+        writeInt(out, header.length);
+        out.write(header);
+        if (nfeatures > 0) {
+            out.write(index(order));
+        }
+
+        RandomAccessFile in = new RandomAccessFile(scratchFile, "r");
+        byte buf[] = new byte[1024];
+        for (int i=0; i<nfeatures; ++i) {
+            int f = order[i];
+            if (sizes[f] > buf.length) { buf = new byte[sizes[f]]; }
+            in.seek(offsets[f]);
+            in.readFully(buf, 0, sizes[f]);
+            out.write(buf, 0, sizes[f]);
+        }
+        in.close();
+        out.close();
+        scratchFile.delete();
+    }
+
+    /**
+     * Encode the file's header.
+     */
+    private byte[] header() throws Exception {
+        // table Header { name: string; envelope: [double]; geometry_type: GeometryType;
+        //   has_z, has_m, has_t, has_tm: bool; columns: [Column]; features_count: ulong;
+        //   index_node_size: ushort = 16; crs: Crs; ... }
+        FlatBufferWriter hb = new FlatBufferWriter();
+        FlatBufferWriter.Table header = hb.table(11)
+            .addOffset(0)
+            .addByte(2, POLYGON)
+            .addOffset(7)
+            .addLong(8, nfeatures)
+            .addShort(9, (nfeatures > 0) ? NODE_SIZE : 0)
+            .addOffset(10);
+        if (nfeatures > 0) {
+            header.addOffset(1);
+        }
+        hb.finish(header.end());
+        hb.patch(header.field(0), hb.string("actoshape"));
+        if (nfeatures > 0) {
+            double envelope[] = { extent.xmin, extent.ymin, extent.xmax, extent.ymax };
+            hb.patch(header.field(1), hb.doubleVector(envelope, 4));
+        }
+
+        // table Column { name: string (required); type: ColumnType; ... }
+        int n = ncolumns();
+        int columns = hb.offsetVector(n);
+        hb.patch(header.field(7), columns);
+        for (int i=0; i<n; ++i) {
+            FlatBufferWriter.Table column = hb.table(2).addOffset(0).addByte(1, COLUMN_TYPES[i]);
+            hb.patch(columns + 4 + 4*i, column.end());
+            hb.patch(column.field(0), hb.string(COLUMN_NAMES[i]));
+        }
+
+        // table Crs { org: string; code: int; ... }
+        FlatBufferWriter.Table crs = hb.table(2).addOffset(0).addInt(1, 4326);
+        hb.patch(header.field(10), crs.end());
+        hb.patch(crs.field(0), hb.string("EPSG"));
+
+        return Arrays.copyOf(hb.buffer(), hb.position());
+    }
+
+    /**
+     * Build the packed R-tree over the features, in the given order, and
+     * encode it.  The tree's nodes are stored level by level, root first;
+     * each leaf node holds a feature's bounding box and its byte offset
+     * in the feature data, and each interior node holds the union of its
+     * children's boxes and the position of its first child in the array
+     * of nodes.
+     */
+    private byte[] index(int order[]) {
+        // number of nodes at each level, leaves first
+        int levelSizes[] = new int[32];
+        int nlevels = 0;
+        int n = nfeatures, nnodes = n;
+        levelSizes[nlevels++] = n;
+        do {
+            n = (n + NODE_SIZE - 1) / NODE_SIZE;
+            nnodes += n;
+            levelSizes[nlevels++] = n;
+        } while (n != 1);
+        // position of the first node of each level
+        int levelStarts[] = new int[nlevels];
+        int pos = nnodes;
+        for (int l=0; l<nlevels; ++l) {
+            pos -= levelSizes[l];
+            levelStarts[l] = pos;
+        }
+
+        double box[] = new double[4*nnodes];
+        long offset[] = new long[nnodes];
+        long featureOffset = 0;
+        for (int i=0; i<nfeatures; ++i) {
+            int f = order[i];
+            int node = levelStarts[0] + i;
+            System.arraycopy(bounds, 4*f, box, 4*node, 4);
+            offset[node] = featureOffset;
+            featureOffset += sizes[f];
+        }
+        for (int l=0; l<nlevels-1; ++l) {
+            int child = levelStarts[l], end = child + levelSizes[l];
+            int parent = levelStarts[l+1];
+            while (child < end) {
+                int k = 4*parent;
+                box[k]   = box[k+1] = Double.MAX_VALUE;
+                box[k+2] = box[k+3] = -Double.MAX_VALUE;
+                offset[parent] = child;
+                for (int j=0; j<NODE_SIZE && child < end; ++j, ++child) {
+                    int c = 4*child;
+                    box[k]   = Math.min(box[k],   box[c]);
+                    box[k+1] = Math.min(box[k+1], box[c+1]);
+                    box[k+2] = Math.max(box[k+2], box[c+2]);
+                    box[k+3] = Math.max(box[k+3], box[c+3]);
+                }
+                ++parent;
+            }
+        }
+
+        ByteBuffer buf = ByteBuffer.allocate(NODE_BYTES * nnodes).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i=0; i<nnodes; ++i) {
+            buf.putDouble(box[4*i]);
+            buf.putDouble(box[4*i+1]);
+            buf.putDouble(box[4*i+2]);
+            buf.putDouble(box[4*i+3]);
+            buf.putLong(offset[i]);
+        }
+        return buf.array();
+    }
+
+}
@@ -0,0 +1,206 @@
+/*
+ * This file is part of AcToShape
+ * by Mark Phillips
+ * mphillip@unca.edu
+ *
+ * Copyright (c) 2009  University of North Carolina at Asheville
+ * Licensed under the RENCI Open Source Software License v. 1.0.
+ * See the file LICENSE.txt for details.
+ */
+
+/**
+ * FloodRaster rasterizes the floodlevel on the mesh onto a regular
+ * grid of square cells covering a Box.  Each cell whose center lies in
+ * a triangle that would be exported to a shapefile gets the floodlevel
+ * interpolated linearly (using barycentric coordinates) from the
+ * triangle's vertices, unless the OutputSpec's clipcoast setting
+ * clips it away; other cells get NODATA.
+ *
+ * The grid's rows are divided into bands of BAND_ROWS rows, and each
+ * triangle is listed in every band that its rows overlap, once, when
+ * the FloodRaster is created.  Rasterizing a timestep then fills the
+ * bands in parallel on a fork-join pool, each band drawing just its
+ * own triangles into its own rows.  The band height matches the tile
+ * height of GeoTiffWriter, so bands and rows of tiles line up.
+ */
+
+package edu.unca.nemac.gis;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+class FloodRaster {
+
+    public static final float NODATA = -9999f;
+    public static final int BAND_ROWS = GeoTiffWriter.TILE_SIZE;
+
+    private AcToShape mesh;
+    public Box bounds;
+    public double cellsize;
+    public int width, height;
+
+    // triangles overlapping band b are bandTriangles[bandStarts[b] .. bandStarts[b+1]-1]
+    private int nbands;
+    private int bandStarts[];
+    private int bandTriangles[];
+
+    /**
+     * @param mesh      the mesh to rasterize, after any clipping and subdividing
+     * @param bounds    area covered by the grid
+     * @param cellsize  width and height of each cell, in degrees
+     */
+    public FloodRaster(AcToShape mesh, Box bounds, double cellsize) {
+        this.mesh     = mesh;
+        this.bounds   = bounds;
+        this.cellsize = cellsize;
+        this.width    = Math.max(1, (int)Math.ceil((bounds.xmax - bounds.xmin) / cellsize));
+        this.height   = Math.max(1, (int)Math.ceil((bounds.ymax - bounds.ymin) / cellsize));
+        this.nbands   = (height + BAND_ROWS - 1) / BAND_ROWS;
+
+        // count the triangles in each band, then list them
+        bandStarts = new int[nbands+1];
+        int rows[] = new int[2];
+        for (int pass=0; pass<2; ++pass) {
+            int next[] = (pass == 0) ? null : Arrays.copyOf(bandStarts, nbands);
+            for (int i=1; i<mesh.triangles.length; ++i) {
+                if (!rowRange(mesh.triangles[i], rows)) { continue; }
+                for (int b=rows[0]/BAND_ROWS; b<=rows[1]/BAND_ROWS; ++b) {
+                    if (pass == 0) {
+                        ++bandStarts[b+1];
+                    } else {
+                        bandTriangles[next[b]++] = i;
+                    }
+                }
+            }
+            if (pass == 0) {
+                for (int b=0; b<nbands; ++b) {
+                    bandStarts[b+1] += bandStarts[b];
+                }
+                bandTriangles = new int[bandStarts[nbands]];
+            }
+        }
+    }
+
+    // Find the first and last rows whose cell centers might lie in the
+    // triangle; returns false if there are none.
+    private boolean rowRange(Triangle t, int rows[]) {
+        double ymin = Double.MAX_VALUE, ymax = -Double.MAX_VALUE;
+        for (int k=0; k<3; ++k) {
+            Vertex p = mesh.vertices[t.vertex_indices[k]];
+            ymin = Math.min(ymin, p.y);
+            ymax = Math.max(ymax, p.y);
+        }
+        rows[0] = Math.max(0,        (int)Math.ceil((bounds.ymax - ymax) / cellsize - 0.5));
+        rows[1] = Math.min(height-1, (int)Math.floor((bounds.ymax - ymin) / cellsize - 0.5));
+        return rows[0] <= rows[1];
+    }
+
+    /**
+     * Rasterize the floodlevel at the given timestep, clipped as the spec
+     * says.  If grid is null, a new grid is returned; otherwise each cell
+     * of grid is replaced by the larger of its value and the new one, so
+     * that rasterizing several timesteps into the same grid gives their
+     * maximum.
+     */
+    public float[] rasterize(int time, OutputSpec spec, float grid[]) {
+        final float g[];
+        final boolean max = (grid != null);
+        if (grid == null) {
+            g = new float[width * height];
+            Arrays.fill(g, NODATA);
+        } else {
+            g = grid;
+        }
+        ForkJoinPool.commonPool().invoke(new Bands(0, nbands, time, spec, g, max));
+        return g;
+    }
+
+    /**
+     * Return the number of triangles that cover cells of the grid at the
+     * given timestep.
+     */
+    public int countTriangles(int time) {
+        int n = 0;
+        int rows[] = new int[2];
+        for (int i=1; i<mesh.triangles.length; ++i) {
+            Triangle t = mesh.triangles[i];
+            if (rowRange(t, rows) && mesh.isExported(t, time)) { ++n; }
+        }
+        return n;
+    }
+
+    /**
+     * Rasterizes bands lo .. hi-1, splitting the range in half until it
+     * is a single band.
+     */
+    private class Bands extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private int lo, hi, time;
+        private OutputSpec spec;
+        private float grid[];
+        private boolean max;
+
+        Bands(int lo, int hi, int time, OutputSpec spec, float grid[], boolean max) {
+            this.lo = lo;
+            this.hi = hi;
+            this.time = time;
+            this.spec = spec;
+            this.grid = grid;
+            this.max = max;
+        }
+
+        protected void compute() {
+            if (hi - lo > 1) {
+                int mid = (lo + hi) / 2;
+                invokeAll(new Bands(lo, mid, time, spec, grid, max), new Bands(mid, hi, time, spec, grid, max));
+                return;
+            }
+            int rowmin = lo * BAND_ROWS, rowmax = Math.min(height, rowmin + BAND_ROWS) - 1;
+            for (int k=bandStarts[lo]; k<bandStarts[lo+1]; ++k) {
+                Triangle t = mesh.triangles[bandTriangles[k]];
+                if (mesh.isExported(t, time)) {
+                    drawTriangle(t, rowmin, rowmax);
+                }
+            }
+        }
+
+        // draw the part of the triangle that lies in rows rowmin .. rowmax
+        private void drawTriangle(Triangle t, int rowmin, int rowmax) {
+            Vertex a = mesh.vertices[t.vertex_indices[0]];
+            Vertex b = mesh.vertices[t.vertex_indices[1]];
+            Vertex c = mesh.vertices[t.vertex_indices[2]];
+            double det = (b.y - c.y) * (a.x - c.x) + (c.x - b.x) * (a.y - c.y);
+            if (det == 0) { return; }
+            double fa = mesh.floodlevel(a, time), fb = mesh.floodlevel(b, time), fc = mesh.floodlevel(c, time);
+            boolean clip = spec.clipcoast;
+            double cliplevel = spec.cliplevel;
+
+            double xmin = Math.min(a.x, Math.min(b.x, c.x)), xmax = Math.max(a.x, Math.max(b.x, c.x));
+            double ymin = Math.min(a.y, Math.min(b.y, c.y)), ymax = Math.max(a.y, Math.max(b.y, c.y));
+            int r0 = Math.max(rowmin, (int)Math.ceil((bounds.ymax - ymax) / cellsize - 0.5));
+            int r1 = Math.min(rowmax, (int)Math.floor((bounds.ymax - ymin) / cellsize - 0.5));
+            int c0 = Math.max(0,       (int)Math.ceil((xmin - bounds.xmin) / cellsize - 0.5));
+            int c1 = Math.min(width-1, (int)Math.floor((xmax - bounds.xmin) / cellsize - 0.5));
+
+            for (int row=r0; row<=r1; ++row) {
+                double y = bounds.ymax - (row + 0.5) * cellsize;
+                for (int col=c0; col<=c1; ++col) {
+                    double x = bounds.xmin + (col + 0.5) * cellsize;
+                    double wa = ((b.y - c.y) * (x - c.x) + (c.x - b.x) * (y - c.y)) / det;
+                    double wb = ((c.y - a.y) * (x - c.x) + (a.x - c.x) * (y - c.y)) / det;
+                    double wc = 1 - wa - wb;
+                    if (wa < 0 || wb < 0 || wc < 0) { continue; }
+                    if (clip && wa * a.depth + wb * b.depth + wc * c.depth > cliplevel) { continue; }
+                    float f = (float)(wa * fa + wb * fb + wc * fc);
+                    int k = row * width + col;
+                    if (!max || grid[k] == NODATA || f > grid[k]) {
+                        grid[k] = f;
+                    }
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,96 @@
+/*
+ * This file is part of AcToShape
+ * by Mark Phillips
+ * mphillip@unca.edu
+ *
+ * Copyright (c) 2009  University of North Carolina at Asheville
+ * Licensed under the RENCI Open Source Software License v. 1.0.
+ * See the file LICENSE.txt for details.
+ */
+
+/**
+ * FrameRing is a LevelSeries that holds only a small, fixed number of
+ * timesteps ("frames") in memory at once.  It is used by the pipelined
+ * execution mode, where each timestep is parsed, computed, and written
+ * while the following timesteps are being parsed.
+ *
+ * Timestep T is stored in frame T % nframes.  Before filling a frame
+ * with a new timestep, the producer must call acquire(), which blocks
+ * until whoever was using that frame for an earlier timestep has
+ * called release().  This is what keeps the reader from running more
+ * than nframes timesteps ahead of the slowest writer.
+ */
+
+package edu.unca.nemac.gis;
+
+import java.util.concurrent.Semaphore;
+
+class FrameRing implements LevelSeries {
+
+    private double level63[][];
+    private double floodlevel[][];
+    private int times[];
+    private Semaphore free[];
+
+    /**
+     * @param nslots    number of values stored for each timestep
+     * @param nframes   number of timesteps held in memory at once
+     */
+    public FrameRing(int nslots, int nframes) {
+        level63    = new double[nframes][nslots];
+        floodlevel = new double[nframes][nslots];
+        times      = new int[nframes];
+        free       = new Semaphore[nframes];
+        for (int i=0; i<nframes; ++i) {
+            times[i] = -1;
+            free[i]  = new Semaphore(1);
+        }
+    }
+
+    /**
+     * Wait until the frame for the given timestep is free, and claim it.
+     */
+    public void acquire(int time) throws InterruptedException {
+        int f = time % times.length;
+        free[f].acquire();
+        times[f] = time;
+    }
+
+    /**
+     * Give back the frame holding the given timestep, so that it can
+     * be reused for a later one.
+     */
+    public void release(int time) {
+        int f = time % times.length;
+        times[f] = -1;
+        free[f].release();
+    }
+
+    public double level63(int slot, int time) {
+        return level63[time % times.length][slot];
+    }
+
+    public double floodlevel(int slot, int time) {
+        return floodlevel[time % times.length][slot];
+    }
+
+    /**
+     * Return the frame holding the level63 (or floodlevel) values of the
+     * given timestep, indexed by slot.  This is the frame itself, not a
+     * copy, so values may be computed directly into it.
+     */
+    public double[] level63Frame(int time) {
+        return level63[time % times.length];
+    }
+
+    public double[] floodlevelFrame(int time) {
+        return floodlevel[time % times.length];
+    }
+
+    public void set(int slot, int time, double level63, double floodlevel) {
+        int f = time % times.length;
+        this.level63[f][slot]    = level63;
+        this.floodlevel[f][slot] = floodlevel;
+    }
+
+}
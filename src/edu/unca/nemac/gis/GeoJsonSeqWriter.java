@@ -0,0 +1,66 @@
+/*
+ * This file is part of AcToShape
+ * by Mark Phillips
+ * mphillip@unca.edu
+ *
+ * Copyright (c) 2009  University of North Carolina at Asheville
+ * Licensed under the RENCI Open Source Software License v. 1.0.
+ * See the file LICENSE.txt for details.
+ */
+
+/**
+ * GeoJsonSeqWriter writes the polygons of one timestep as
+ * newline-delimited GeoJSON: one GeoJSON Feature per line, with no
+ * enclosing FeatureCollection, so the file can be written (and read)
+ * one feature at a time.
+ */
+
+package edu.unca.nemac.gis;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+class GeoJsonSeqWriter implements PolygonWriter {
+
+    private Writer out;
+    private boolean debugfields;
+    private StringBuilder sb = new StringBuilder(512);
+
+    /**
+     * @param filename     name of the file to write
+     * @param debugfields  whether to include the tindex and vindices attributes
+     */
+    public GeoJsonSeqWriter(String filename, boolean debugfields) throws Exception {
+        this.out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(filename), "UTF-8"), 1 << 16);
+        this.debugfields = debugfields;
+    }
+
+    public boolean write(OutputPolygon poly) throws Exception {
+        if (poly.npoints == 0) { return false; }
+        sb.setLength(0);
+        sb.append("{\"type\":\"Feature\",\"properties\":{\"timestep\":").append(poly.time);
+        sb.append(",\"depth\":").append((float)poly.depth);
+        sb.append(",\"floodlevel\":").append((float)poly.floodlevel);
+        sb.append(",\"level63\":").append((float)poly.level63);
+        if (debugfields) {
+            sb.append(",\"tindex\":").append(poly.tindex);
+            sb.append(",\"vindices\":\"").append(poly.vindices[0]).append(',')
+                .append(poly.vindices[1]).append(',').append(poly.vindices[2]).append('"');
+        }
+        sb.append("},\"geometry\":{\"type\":\"Polygon\",\"coordinates\":[[");
+        for (int i=0; i<poly.npoints; ++i) {
+            if (i > 0) { sb.append(','); }
+            sb.append('[').append(poly.x[i]).append(',').append(poly.y[i]).append(']');
+        }
+        sb.append("]]}}\n");
+        out.append(sb);
+        return true;
+    }
+
+    public void close() throws Exception {
+        out.close();
+    }
+
+}
@@ -0,0 +1,274 @@
+/*
+ * This file is part of AcToShape
+ * by Mark Phillips
+ * mphillip@unca.edu
+ *
+ * Copyright (c) 2009  University of North Carolina at Asheville
+ * Licensed under the RENCI Open Source Software License v. 1.0.
+ * See the file LICENSE.txt for details.
+ */
+
+/**
+ * GeoTiffWriter writes a FloodRaster grid as a GeoTIFF file: a
+ * single-band 32-bit floating point TIFF, divided into 256 x 256 tiles
+ * that are each compressed with Deflate, with the GeoTIFF tags that
+ * place it in longitude/latitude (EPSG:4326) coordinates, and GDAL's
+ * tag for the NODATA value.  The tiles are compressed in parallel.
+ */
+
+package edu.unca.nemac.gis;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.zip.Deflater;
+
+class GeoTiffWriter {
+
+    public static final int TILE_SIZE = 256;
+
+    // TIFF field types
+    private static final int ASCII  = 2;
+    private static final int SHORT  = 3;
+    private static final int LONG   = 4;
+    private static final int DOUBLE = 12;
+
+    /**
+     * Write the grid to the named file.
+     */
+    public static void write(String filename, FloodRaster raster, float grid[]) throws IOException {
+        int across = (raster.width  + TILE_SIZE - 1) / TILE_SIZE;
+        int down   = (raster.height + TILE_SIZE - 1) / TILE_SIZE;
+        byte tiles[][] = new byte[across * down][];
+        ForkJoinPool.commonPool().invoke(new Tiles(raster, grid, tiles, 0, tiles.length));
+
+        // the tiles follow the 8-byte header, and the IFD follows the tiles
+        long offset = 8;
+        long offsets[] = new long[tiles.length];
+        for (int i=0; i<tiles.length; ++i) {
+            offsets[i] = offset;
+            offset += tiles[i].length;
+        }
+        if (offset > 0xffffffffL - (1 << 20)) {
+            throw new IOException(String.format("%s: raster too large for a TIFF file", filename));
+        }
+
+        Ifd ifd = new Ifd(offset + (offset % 2));
+        ifd.add(256, LONG,  raster.width);                 // ImageWidth
+        ifd.add(257, LONG,  raster.height);                // ImageLength
+        ifd.add(258, SHORT, 32);                           // BitsPerSample
+        ifd.add(259, SHORT, 8);                            // Compression: Deflate
+        ifd.add(262, SHORT, 1);                            // PhotometricInterpretation: BlackIsZero
+        ifd.add(277, SHORT, 1);                            // SamplesPerPixel
+        ifd.add(284, SHORT, 1);                            // PlanarConfiguration: chunky
+        ifd.add(322, SHORT, TILE_SIZE);                    // TileWidth
+        ifd.add(323, SHORT, TILE_SIZE);                    // TileLength
+        ifd.add(324, LONG,  offsets);                      // TileOffsets
+        long counts[] = new long[tiles.length];
+        for (int i=0; i<tiles.length; ++i) {
+            counts[i] = tiles[i].length;
+        }
+        ifd.add(325, LONG,  counts);                       // TileByteCounts
+        ifd.add(339, SHORT, 3);                            // SampleFormat: IEEE floating point
+        ifd.add(33550, new double[] { raster.cellsize, raster.cellsize, 0 });                        // ModelPixelScale
+        ifd.add(33922, new double[] { 0, 0, 0, raster.bounds.xmin, raster.bounds.ymax, 0 });        // ModelTiepoint
+        ifd.add(34735, SHORT, new long[] {                                                           // GeoKeyDirectory
+                1, 1, 0, 3,                 // version 1.1.0, 3 keys
+                1024, 0, 1, 2,              // GTModelTypeGeoKey = ModelTypeGeographic
+                1025, 0, 1, 1,              // GTRasterTypeGeoKey = RasterPixelIsArea
+                2048, 0, 1, 4326 });        // GeographicTypeGeoKey = WGS 84
+        ifd.add(42113, String.valueOf((int)FloodRaster.NODATA));                                   // GDAL_NODATA
+
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(filename), 1 << 16);
+        ByteBuffer header = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        header.put((byte)'I').put((byte)'I').putShort((short)42).putInt((int)ifd.offset);
+        out.write(header.array());
+        for (byte tile[] : tiles) {
+            out.write(tile);
+        }
+        if (offset % 2 != 0) {
+            out.write(0);
+        }
+        out.write(ifd.encode());
+        out.close();
+    }
+
+    /**
+     * Compresses tiles lo .. hi-1, splitting the range in half until it
+     * is a single row of tiles.
+     */
+    private static class Tiles extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private FloodRaster raster;
+        private float grid[];
+        private byte tiles[][];
+        private int lo, hi;
+
+        Tiles(FloodRaster raster, float grid[], byte tiles[][], int lo, int hi) {
+            this.raster = raster;
+            this.grid = grid;
+            this.tiles = tiles;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        protected void compute() {
+            int across = (raster.width + TILE_SIZE - 1) / TILE_SIZE;
+            if (hi - lo > across) {
+                int mid = lo + ((hi - lo) / across / 2) * across;
+                invokeAll(new Tiles(raster, grid, tiles, lo, mid), new Tiles(raster, grid, tiles, mid, hi));
+                return;
+            }
+            ByteBuffer buf = ByteBuffer.allocate(4 * TILE_SIZE * TILE_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            byte out[] = new byte[buf.capacity() + 1024];
+            Deflater deflater = new Deflater();
+            for (int i=lo; i<hi; ++i) {
+                int row0 = (i / across) * TILE_SIZE, col0 = (i % across) * TILE_SIZE;
+                buf.clear();
+                for (int row=row0; row<row0+TILE_SIZE; ++row) {
+                    for (int col=col0; col<col0+TILE_SIZE; ++col) {
+                        // tiles at the right and bottom edges are padded with NODATA
+                        buf.putFloat((row < raster.height && col < raster.width)
+                                     ? grid[row * raster.width + col] : FloodRaster.NODATA);
+                    }
+                }
+                deflater.reset();
+                deflater.setInput(buf.array());
+                deflater.finish();
+                int n = 0;
+                while (!deflater.finished()) {
+                    if (n == out.length) {
+                        out = Arrays.copyOf(out, 2 * out.length);
+                    }
+                    n += deflater.deflate(out, n, out.length - n);
+                }
+                tiles[i] = Arrays.copyOf(out, n);
+            }
+            deflater.end();
+        }
+    }
+
+    /**
+     * A TIFF image file directory.  Entries must be added in order of
+     * their tags.  Values too big to fit in an entry are stored after
+     * the directory.
+     */
+    private static class Ifd {
+        long offset;
+        private ByteBuffer entries = ByteBuffer.allocate(12 * 32).order(ByteOrder.LITTLE_ENDIAN);
+        private ByteBuffer data = ByteBuffer.allocate(1024).order(ByteOrder.LITTLE_ENDIAN);
+        private int nentries = 0;
+
+        Ifd(long offset) {
+            this.offset = offset;
+        }
+
+        private static int typeSize(int type) {
+            switch (type) {
+            case SHORT:  return 2;
+            case LONG:   return 4;
+            case DOUBLE: return 8;
+            default:     return 1;
+            }
+        }
+
+        private void reserve(int n) {
+            if (data.remaining() < n) {
+                ByteBuffer b = ByteBuffer.allocate(Math.max(2 * data.capacity(), data.position() + n)).order(ByteOrder.LITTLE_ENDIAN);
+                data.flip();
+                b.put(data);
+                data = b;
+            }
+        }
+
+        // start an entry, returning the buffer its values should be put in
+        private ByteBuffer entry(int tag, int type, int count) {
+            entries.putShort((short)tag).putShort((short)type).putInt(count);
+            int size = typeSize(type) * count;
+            if (size <= 4) {
+                return entries;
+            }
+            reserve(size + 1);
+            entries.putInt(-1 - data.position());   // fixed up in encode()
+            return data;
+        }
+
+        private void put(ByteBuffer b, int type, long v) {
+            switch (type) {
+            case SHORT: b.putShort((short)v); break;
+            case LONG:  b.putInt((int)v); break;
+            default:    b.put((byte)v);
+            }
+        }
+
+        // pad an in-entry value out to 4 bytes, or the data to a word boundary
+        private void pad(ByteBuffer b) {
+            if (b == entries) {
+                while (entries.position() % 12 != 0) { entries.put((byte)0); }
+            } else {
+                if (data.position() % 2 != 0) { data.put((byte)0); }
+            }
+        }
+
+        void add(int tag, int type, long v) {
+            add(tag, type, new long[] { v });
+        }
+
+        void add(int tag, int type, long v[]) {
+            ByteBuffer b = entry(tag, type, v.length);
+            for (long x : v) {
+                put(b, type, x);
+            }
+            pad(b);
+            ++nentries;
+        }
+
+        void add(int tag, double v[]) {
+            ByteBuffer b = entry(tag, DOUBLE, v.length);
+            for (double x : v) {
+                b.putDouble(x);
+            }
+            pad(b);
+            ++nentries;
+        }
+
+        void add(int tag, String s) {
+            ByteBuffer b = entry(tag, ASCII, s.length() + 1);
+            for (int i=0; i<s.length(); ++i) {
+                b.put((byte)s.charAt(i));
+            }
+            b.put((byte)0);
+            pad(b);
+            ++nentries;
+        }
+
+        byte[] encode() {
+            int size = 2 + 12 * nentries + 4;
+            long dataOffset = offset + size;
+            ByteBuffer b = ByteBuffer.allocate(size + data.position()).order(ByteOrder.LITTLE_ENDIAN);
+            b.putShort((short)nentries);
+            for (int i=0; i<nentries; ++i) {
+                int e = 12 * i;
+                int type = entries.getShort(e + 2);
+                int count = entries.getInt(e + 4);
+                b.putShort(entries.getShort(e)).putShort((short)type).putInt(count);
+                if (typeSize(type) * count <= 4) {
+                    b.putInt(entries.getInt(e + 8));
+                } else {
+                    b.putInt((int)(dataOffset + (-1 - entries.getInt(e + 8))));
+                }
+            }
+            b.putInt(0);    // no more IFDs
+            b.put(data.array(), 0, data.position());
+            return b.array();
+        }
+    }
+
+}
@@ -0,0 +1,65 @@
+/*
+ * This file is part of AcToShape
+ * by Mark Phillips
+ * mphillip@unca.edu
+ *
+ * Copyright (c) 2009  University of North Carolina at Asheville
+ * Licensed under the RENCI Open Source Software License v. 1.0.
+ * See the file LICENSE.txt for details.
+ */
+
+/**
+ * Hilbert computes positions along a Hilbert curve that fills a
+ * 65536 x 65536 grid.  Points that are close together along the curve
+ * are close together in space, so sorting things by their Hilbert
+ * index groups spatially nearby things together.
+ */
+
+package edu.unca.nemac.gis;
+
+class Hilbert {
+
+    /**
+     * Number of cells along each side of the grid.
+     */
+    public static final int N = 1 << 16;
+
+    /**
+     * Return the position of grid cell (x,y) along the curve, where
+     * 0 <= x,y < N.  The result is between 0 and N*N-1.
+     */
+    public static long index(int x, int y) {
+        long d = 0;
+        for (int s=N/2; s>0; s/=2) {
+            int rx = ((x & s) > 0) ? 1 : 0;
+            int ry = ((y & s) > 0) ? 1 : 0;
+            d += (long)s * s * ((3 * rx) ^ ry);
+            // rotate the quadrant so that the curve within it is in standard orientation
+            if (ry == 0) {
+                if (rx == 1) {
+                    x = N-1 - x;
+                    y = N-1 - y;
+                }
+                int t = x;
+                x = y;
+                y = t;
+            }
+        }
+        return d;
+    }
+
+    /**
+     * Return the position along the curve of the point (x,y), where the
+     * grid is stretched to cover the given box.
+     */
+    public static long index(double x, double y, Box box) {
+        return index(cell(x, box.xmin, box.xmax), cell(y, box.ymin, box.ymax));
+    }
+
+    private static int cell(double v, double min, double max) {
+        if (max <= min) { return 0; }
+        int c = (int)((v - min) / (max - min) * (N-1));
+        return (c < 0) ? 0 : ((c > N-1) ? N-1 : c);
+    }
+
+}
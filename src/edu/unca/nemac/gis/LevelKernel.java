@@ -0,0 +1,181 @@
+/*
+ * This file is part of AcToShape
+ * by Mark Phillips
+ * mphillip@unca.edu
+ *
+ * Copyright (c) 2009  University of North Carolina at Asheville
+ * Licensed under the RENCI Open Source Software License v. 1.0.
+ * See the file LICENSE.txt for details.
+ */
+
+/**
+ * LevelKernel computes the level63 and floodlevel values of every
+ * triangle for one timestep from a timestep-major block of vertex
+ * values: arrays indexed by vertex slot that hold the values of all
+ * the vertices at that timestep, such as a FrameRing frame.
+ *
+ * The mesh's connectivity is copied once into flat arrays of slots
+ * (one array per triangle corner, and the parents of the vertices
+ * created by subdivide), so that computing a timestep is a few tight
+ * loops over int and double arrays, with no Vertex or Triangle objects
+ * or LevelSeries calls in them.  The results are exactly the values
+ * that the level accessors in AcToShape compute one at a time.
+ *
+ * The pipeline (--pipeline) uses the whole kernel, since only the
+ * pipeline has its levels in timestep-major blocks.  The in-core
+ * arrays are per vertex and triangle and run over timesteps, which
+ * Triangle.compute() averages with the static average() here; the
+ * out-of-core series averages a triangle's levels only when it is
+ * written, one value at a time, so it has no loop to speed up.
+ *
+ * The averaging loops are plain scalar loops unless useVector() is
+ * called (the --vector option) on a JVM that has the incubating Vector
+ * API (--add-modules jdk.incubator.vector), in which case
+ * VectorAverager runs them with explicit SIMD instructions.  Both sum
+ * the values in the same order, so the results are identical.
+ */
+
+package edu.unca.nemac.gis;
+
+class LevelKernel {
+
+    // vertex slots of the corners of triangle slot i are a[i], b[i], c[i]
+    private int a[], b[], c[];
+
+    // vertices created by subdivide, each after its parents, with the
+    // slots of their parents and their depths
+    private int derived[];
+    private int parent0[], parent1[];
+    private double depth[];
+
+    // the averaging loops; replaced by a VectorAverager by useVector()
+    private static Averager averager = new Averager();
+
+    /**
+     * The vertices' and triangles' slots must be their positions in
+     * the arrays.
+     */
+    public LevelKernel(Vertex vertices[], Triangle triangles[]) {
+        a = new int[triangles.length];
+        b = new int[triangles.length];
+        c = new int[triangles.length];
+        for (int i=1; i<triangles.length; ++i) {
+            int v[] = triangles[i].vertex_indices;
+            a[i] = v[0];
+            b[i] = v[1];
+            c[i] = v[2];
+        }
+
+        int n = 0;
+        for (int i=1; i<vertices.length; ++i) {
+            if (vertices[i].parents != null) { ++n; }
+        }
+        derived = new int[n];
+        parent0 = new int[n];
+        parent1 = new int[n];
+        depth   = new double[n];
+        boolean placed[] = new boolean[vertices.length];
+        int next = 0;
+        for (int i=1; i<vertices.length; ++i) {
+            next = place(vertices[i], placed, next);
+        }
+    }
+
+    // add a subdivided vertex to the derived list after its parents
+    private int place(Vertex v, boolean placed[], int next) {
+        if (v.parents == null || placed[v.slot]) { return next; }
+        next = place(v.parents[0], placed, next);
+        next = place(v.parents[1], placed, next);
+        derived[next] = v.slot;
+        parent0[next] = v.parents[0].slot;
+        parent1[next] = v.parents[1].slot;
+        depth[next]   = v.depth;
+        placed[v.slot] = true;
+        return next + 1;
+    }
+
+    /**
+     * Fill in the values of the vertices created by subdivide, which
+     * are not read from the .63 file, from those of their parents.
+     */
+    public void fillDerived(double level63[], double floodlevel[]) {
+        for (int k=0; k<derived.length; ++k) {
+            int d = derived[k];
+            double l = (level63[parent0[k]] + level63[parent1[k]])/2;
+            double f = l + depth[k];
+            level63[d]    = l;
+            floodlevel[d] = (f < 0) ? 0 : f;
+        }
+    }
+
+    /**
+     * Set out[i] to the average of the values v of the corners of
+     * triangle slot i, for triangle slots from .. to-1.
+     */
+    public void average(double v[], double out[], int from, int to) {
+        averager.gather(v, a, b, c, out, from, to);
+    }
+
+    /**
+     * Set out[i] to the average of a[i], b[i] and c[i], for i from 0
+     * to n-1.
+     */
+    public static void average(double a[], double b[], double c[], double out[], int n) {
+        averager.stream(a, b, c, out, n);
+    }
+
+    /**
+     * Run the averaging loops with the Vector API, if this JVM has it.
+     * Returns false, and leaves the scalar loops in place, if the
+     * jdk.incubator.vector module was not added or VectorAverager
+     * was not compiled.
+     */
+    public static boolean useVector() {
+        if (!ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) {
+            return false;
+        }
+        try {
+            // by name, so that nothing loads the Vector API classes
+            // unless it is asked for
+            averager = (Averager)Class.forName("edu.unca.nemac.gis.VectorAverager")
+                .getDeclaredConstructor().newInstance();
+            return true;
+        } catch (Throwable t) {
+            return false;
+        }
+    }
+
+    /**
+     * Compute the triangle values for one timestep from the vertex
+     * values, after filling in those of the subdivided vertices.
+     */
+    public void compute(double vlevel63[], double vfloodlevel[], double tlevel63[], double tfloodlevel[]) {
+        fillDerived(vlevel63, vfloodlevel);
+        average(vlevel63,    tlevel63,    1, a.length);
+        average(vfloodlevel, tfloodlevel, 1, a.length);
+    }
+
+    /**
+     * The scalar averaging loops.  Each value is summed as
+     * (0.0 + x + y + z) / 3, the order the level accessors in
+     * AcToShape use, so that every path gives the same results.
+     */
+    static class Averager {
+
+        // out[i] = average of v[a[i]], v[b[i]], v[c[i]], for i from .. to-1
+        void gather(double v[], int a[], int b[], int c[], double out[], int from, int to) {
+            for (int i=from; i<to; ++i) {
+                out[i] = (0.0 + v[a[i]] + v[b[i]] + v[c[i]]) / 3;
+            }
+        }
+
+        // out[i] = average of a[i], b[i], c[i], for i from 0 to n-1
+        void stream(double a[], double b[], double c[], double out[], int n) {
+            for (int i=0; i<n; ++i) {
+                out[i] = (0.0 + a[i] + b[i] + c[i]) / 3;
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,28 @@
+/*
+ * This file is part of AcToShape
+ * by Mark Phillips
+ * mphillip@unca.edu
+ *
+ * Copyright (c) 2009  University of North Carolina at Asheville
+ * Licensed under the RENCI Open Source Software License v. 1.0.
+ * See the file LICENSE.txt for details.
+ */
+
+/**
+ * LevelSeries is a store of level63 and floodlevel values, indexed
+ * by slot (the position of a vertex or triangle in the mesh) and by
+ * timestep, used when those values are not held in the arrays of the
+ * Vertex and Triangle objects themselves.
+ */
+
+package edu.unca.nemac.gis;
+
+interface LevelSeries {
+
+    public double level63(int slot, int time);
+
+    public double floodlevel(int slot, int time);
+
+    public void set(int slot, int time, double level63, double floodlevel);
+
+}
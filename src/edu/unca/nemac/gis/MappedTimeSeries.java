@@ -0,0 +1,187 @@
+/*
+ * This file is part of AcToShape
+ * by Mark Phillips
+ * mphillip@unca.edu
+ *
+ * Copyright (c) 2009  University of North Carolina at Asheville
+ * Licensed under the RENCI Open Source Software License v. 1.0.
+ * See the file LICENSE.txt for details.
+ */
+
+/**
+ * MappedTimeSeries stores the level63 and floodlevel values for a
+ * set of vertices at every timestep of a simulation in a
+ * memory-mapped scratch file, rather than in the heap.  This lets
+ * actoshape process .63 files whose level data is bigger than the
+ * available memory.
+ *
+ * The scratch file is laid out as a sequence of timestep-major
+ * blocks: block T holds the values for every slot at timestep T,
+ * so all of the values needed to write one timestep's shapefile
+ * are contiguous on disk.  Within a block, each slot occupies 16
+ * bytes: its level63 value followed by its floodlevel value.
+ *
+ * The file only holds the timesteps from the first one being loaded
+ * (later than 0 when an incremental run resumes), and its segments
+ * are mapped, and the file extended to cover them, as they are first
+ * written, so timesteps that are never loaded (those not yet in a .63
+ * file that is still growing) take up no space.  Loading is done by
+ * one thread before the values are read by others.
+ */
+
+package edu.unca.nemac.gis;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+class MappedTimeSeries implements LevelSeries {
+
+    /**
+     * Number of bytes used for each slot within a timestep block.
+     */
+    private static final int SLOT_BYTES = 16;
+
+    /**
+     * Size of each mapped segment of the scratch file.  A single
+     * MappedByteBuffer can't be bigger than 2GB, so the file is
+     * mapped in pieces; the segment size is a multiple of
+     * SLOT_BYTES so that no value straddles two segments.
+     */
+    private static final long SEGMENT_BYTES = 1L << 30;
+
+    private File file;
+    private RandomAccessFile raf;
+    private FileChannel fc;
+    private MappedByteBuffer segments[];
+    private long size;
+    private int nslots;
+    private int firstTimestep;
+    private int ntimesteps;
+
+    /**
+     * Create a new scratch file in the given directory, big enough
+     * to hold nslots values for each of ntimesteps timesteps.
+     *
+     * @param dir           directory in which to create the scratch file;
+     *                      if null, the system temporary directory is used
+     * @param nslots        number of vertices stored at each timestep
+     * @param ntimesteps    number of timesteps
+     */
+    public MappedTimeSeries(File dir, int nslots, int ntimesteps) throws Exception {
+        this(dir, nslots, 0, ntimesteps);
+    }
+
+    /**
+     * Create a scratch file for timesteps firstTimestep .. ntimesteps-1
+     * only.
+     */
+    public MappedTimeSeries(File dir, int nslots, int firstTimestep, int ntimesteps) throws Exception {
+        this.nslots        = nslots;
+        this.firstTimestep = firstTimestep;
+        this.ntimesteps    = ntimesteps;
+        this.file = File.createTempFile("actoshape", ".levels", dir);
+        this.file.deleteOnExit();
+
+        size = (long)nslots * (ntimesteps - firstTimestep) * SLOT_BYTES;
+        int nsegments = (int)((size + SEGMENT_BYTES - 1) / SEGMENT_BYTES);
+        segments = new MappedByteBuffer[nsegments];
+        raf = new RandomAccessFile(file, "rw");
+        fc = raf.getChannel();
+    }
+
+    // the segment holding the given offset, mapping it if it hasn't been
+    private MappedByteBuffer segment(long off) {
+        MappedByteBuffer seg = segments[(int)(off / SEGMENT_BYTES)];
+        return (seg != null) ? seg : map((int)(off / SEGMENT_BYTES));
+    }
+
+    private synchronized MappedByteBuffer map(int i) {
+        if (segments[i] == null) {
+            long start = i * SEGMENT_BYTES;
+            MappedByteBuffer seg;
+            try {
+                seg = fc.map(FileChannel.MapMode.READ_WRITE, start, Math.min(SEGMENT_BYTES, size - start));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            // set up completely before segment() can see it
+            seg.order(ByteOrder.nativeOrder());
+            segments[i] = seg;
+        }
+        return segments[i];
+    }
+
+    public int getNumSlots() {
+        return nslots;
+    }
+
+    public int getNumTimesteps() {
+        return ntimesteps;
+    }
+
+    private long offset(int slot, int time) {
+        return ((long)(time - firstTimestep) * nslots + slot) * SLOT_BYTES;
+    }
+
+    public double level63(int slot, int time) {
+        long off = offset(slot, time);
+        return segment(off).getDouble((int)(off % SEGMENT_BYTES));
+    }
+
+    public double floodlevel(int slot, int time) {
+        long off = offset(slot, time) + 8;
+        return segment(off).getDouble((int)(off % SEGMENT_BYTES));
+    }
+
+    public void set(int slot, int time, double level63, double floodlevel) {
+        long off = offset(slot, time);
+        MappedByteBuffer seg = segment(off);
+        int pos = (int)(off % SEGMENT_BYTES);
+        seg.putDouble(pos,     level63);
+        seg.putDouble(pos + 8, floodlevel);
+    }
+
+    /**
+     * Unmap the segments and remove the scratch file.  The series must
+     * not be used after this.
+     */
+    public void close() {
+        for (int i=0; i<segments.length; ++i) {
+            if (segments[i] != null) {
+                unmap(segments[i]);
+                segments[i] = null;
+            }
+        }
+        try {
+            fc.close();
+            raf.close();
+        } catch (IOException e) {
+            // nothing more to do; the file is removed below or on exit
+        }
+        file.delete();
+    }
+
+    // Unmap a buffer now, rather than whenever it is garbage collected;
+    // there is no public way to do this, so where it isn't possible the
+    // mapping is left to the garbage collector.
+    private static void unmap(ByteBuffer buffer) {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            invokeCleaner.invoke(theUnsafe.get(null), buffer);
+        } catch (Exception e) {
+            // not available in this java
+        }
+    }
+
+}
@@ -0,0 +1,215 @@
+/*
+ * This file is part of AcToShape
+ * by Mark Phillips
+ * mphillip@unca.edu
+ *
+ * Copyright (c) 2009  University of North Carolina at Asheville
+ * Licensed under the RENCI Open Source Software License v. 1.0.
+ * See the file LICENSE.txt for details.
+ */
+
+/**
+ * MemoryPlan estimates, before anything is loaded, how much heap a run
+ * will need, from the counts in the headers of the grid and .63 files
+ * and the box, subdivide, and raster options, for each of the ways
+ * actoshape can hold the level data:
+ *
+ *   STRATEGY_IN_CORE       every vertex and triangle has arrays of its
+ *                          levels at every timestep (the default)
+ *   STRATEGY_OUT_OF_CORE   the vertex levels are in a memory-mapped
+ *                          scratch file (--outofcore), outside the heap
+ *   STRATEGY_PIPELINE      only a few timesteps are held at once
+ *                          (--pipeline)
+ *
+ * so that a run that would not fit in a memory budget can be switched
+ * to one that does, or stopped before it has spent an hour parsing.
+ *
+ * Without a box or a raster, only the header lines of the files are
+ * read; the grid file's nodes are read only to count those in a box or
+ * to find the extent of a raster.
+ *
+ * The estimates are of the biggest things actoshape allocates, with
+ * object sizes for a 64-bit JVM with compressed references, plus a
+ * fixed allowance for everything else; they are meant to be on the
+ * high side.
+ */
+
+package edu.unca.nemac.gis;
+
+import java.io.BufferedReader;
+
+class MemoryPlan {
+
+    public static final String STRATEGY_IN_CORE     = "in core";
+    public static final String STRATEGY_OUT_OF_CORE = "out of core";
+    public static final String STRATEGY_PIPELINE    = "pipeline";
+
+    // approximate sizes of the objects that make up the mesh
+    private static final long BASE_BYTES     = 64L << 20;   // JVM, GeoTools, buffers
+    private static final long REF_BYTES      = 4;
+    private static final long VERTEX_BYTES   = 56 + 2*REF_BYTES;    // object, vertices[] and nodes[] entries
+    private static final long PARENTS_BYTES  = 24;                  // parents[] of a subdivided vertex
+    private static final long TRIANGLE_BYTES = 40 + 32 + REF_BYTES; // object, vertex_indices[], triangles[] entry
+    private static final long ARRAY_BYTES    = 16;                  // header of a double[]
+
+    public long nfileVertices;  // number of nodes in the grid file
+    public long nvertices;      // vertices kept, after the box is applied
+    public long ntriangles;     // triangles kept, after the box is applied and subdividing
+    public long nderived = 0;   // vertices created by subdividing
+    public int ntimesteps;
+    public boolean box = false;
+    public Box extent = null;   // area covered by the kept vertices
+    public long rasterCells = 0;
+
+    /**
+     * Read the counts from the headers of the grid and .63 files.  Only
+     * the header lines are read, unless there is a box or the extent is
+     * wanted (for sizing rasters): then the grid file's nodes are read
+     * too, to count those in the box, estimating the triangles in it in
+     * proportion, and to find the area they cover.
+     */
+    public static MemoryPlan read(String gridFilename, String filename63, Box box, boolean extent) throws Exception {
+        MemoryPlan plan = new MemoryPlan();
+        BufferedReader br = CompressedInput.openReader(gridFilename);
+        br.readLine();
+        String fields[] = br.readLine().trim().split(" +");
+        long ntriangles = Long.parseLong(fields[0]);
+        plan.nfileVertices = Long.parseLong(fields[1]);
+        plan.nvertices = plan.nfileVertices;
+        plan.ntriangles = ntriangles;
+        plan.box = (box != null);
+        if (box == null && !extent) {
+            br.close();
+            plan.ntimesteps = read63Timesteps(filename63);
+            return plan;
+        }
+        Box ext = new Box(Double.MAX_VALUE, Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE);
+        long nkept = 0;
+        for (long i=0; i<plan.nfileVertices; ++i) {
+            fields = br.readLine().trim().split(" +");
+            double x = Double.parseDouble(fields[1]);
+            double y = Double.parseDouble(fields[2]);
+            if (box != null && !(x >= box.xmin && y >= box.ymin && x <= box.xmax && y <= box.ymax)) {
+                continue;
+            }
+            ++nkept;
+            if (x < ext.xmin) { ext.xmin = x; }
+            if (y < ext.ymin) { ext.ymin = y; }
+            if (x > ext.xmax) { ext.xmax = x; }
+            if (y > ext.ymax) { ext.ymax = y; }
+        }
+        br.close();
+        if (box != null) {
+            plan.nvertices = nkept;
+            plan.ntriangles = (plan.nfileVertices > 0) ? (long)Math.ceil((double)ntriangles * nkept / plan.nfileVertices) : 0;
+            ext = box;
+        }
+        plan.extent = ext;
+        plan.ntimesteps = read63Timesteps(filename63);
+        return plan;
+    }
+
+    // the number of timesteps given in the header of a .63 file
+    private static int read63Timesteps(String filename63) throws Exception {
+        Reader63 r63 = new Reader63(filename63);
+        r63.readLine();
+        String fields[] = r63.readLine().trim().split(" +");
+        r63.close();
+        return Integer.parseInt(fields[0]);
+    }
+
+    /**
+     * Account for subdividing the mesh n times; each time adds 3
+     * vertices for each triangle and replaces it with 4.
+     */
+    public void subdivide(int n) {
+        for (int i=0; i<n; ++i) {
+            nderived += 3*ntriangles;
+            ntriangles *= 4;
+        }
+    }
+
+    /**
+     * Account for writing GeoTIFF rasters with the given cell size.
+     */
+    public void setRaster(double cellsize) {
+        if (extent == null || extent.xmin > extent.xmax) { return; }
+        long width  = Math.max(1, (long)Math.ceil((extent.xmax - extent.xmin) / cellsize));
+        long height = Math.max(1, (long)Math.ceil((extent.ymax - extent.ymin) / cellsize));
+        rasterCells = width * height;
+    }
+
+    /**
+     * Return the estimated heap needed with the given strategy; nwriters
+     * is the number of pipeline writers, each of which may be
+     * rasterizing a timestep at once.
+     */
+    public long bytes(String strategy, int nwriters) {
+        long allVertices = nvertices + nderived;
+        long b = BASE_BYTES
+            + allVertices * VERTEX_BYTES + nderived * PARENTS_BYTES
+            + ntriangles * TRIANGLE_BYTES
+            + nfileVertices * REF_BYTES;
+        if (box) {
+            // the table of where each node in the file was kept
+            b += nfileVertices * 4;
+        }
+        long series = ARRAY_BYTES + 8L * ntimesteps;
+        int nrasters = 1;
+        if (strategy.equals(STRATEGY_IN_CORE)) {
+            // level63[] and floodlevel[] for every vertex and triangle
+            b += 2 * series * (allVertices + ntriangles);
+        } else if (strategy.equals(STRATEGY_PIPELINE)) {
+            // nwriters+2 frames of vertex and triangle levels, and the
+            // flat arrays of LevelKernel
+            b += (nwriters + 2) * 2 * 8 * (allVertices + ntriangles + 2);
+            b += 12 * ntriangles + 20 * nderived;
+            nrasters = nwriters;
+        }
+        // a raster and the tiles it is written from
+        b += nrasters * 2 * 4 * rasterCells;
+        return b;
+    }
+
+    /**
+     * Return the strategy to use within a budget of heap bytes: the
+     * requested one if it fits, otherwise the first lower-memory one
+     * that does (the pipeline, if allowed, then out of core), or null if
+     * none does.
+     */
+    public String choose(String requested, long budget, int nwriters, boolean pipelineAllowed) {
+        if (bytes(requested, nwriters) <= budget) {
+            return requested;
+        }
+        if (pipelineAllowed && !requested.equals(STRATEGY_PIPELINE) && bytes(STRATEGY_PIPELINE, nwriters) <= budget) {
+            return STRATEGY_PIPELINE;
+        }
+        if (bytes(STRATEGY_OUT_OF_CORE, nwriters) <= budget) {
+            return STRATEGY_OUT_OF_CORE;
+        }
+        return null;
+    }
+
+    /**
+     * Parse a size in bytes, optionally followed by K, M, or G.
+     */
+    public static long parseBytes(String s) {
+        long unit = 1;
+        char suffix = Character.toUpperCase(s.charAt(s.length()-1));
+        if (suffix == 'K')      { unit = 1L << 10; }
+        else if (suffix == 'M') { unit = 1L << 20; }
+        else if (suffix == 'G') { unit = 1L << 30; }
+        if (unit > 1) {
+            s = s.substring(0, s.length()-1);
+        }
+        return (long)(Double.parseDouble(s) * unit);
+    }
+
+    /**
+     * Format a size in bytes as megabytes, for messages.
+     */
+    public static String formatBytes(long bytes) {
+        return String.format("%1dM", (bytes + (1L << 20) - 1) >> 20);
+    }
+
+}
@@ -0,0 +1,79 @@
+/*
+ * This file is part of AcToShape
+ * by Mark Phillips
+ * mphillip@unca.edu
+ *
+ * Copyright (c) 2009  University of North Carolina at Asheville
+ * Licensed under the RENCI Open Source Software License v. 1.0.
+ * See the file LICENSE.txt for details.
+ */
+
+/**
+ * OutputPolygon holds the polygon and attribute values computed for
+ * one triangle at one timestep, before they are written in whatever
+ * output format was requested.  The polygon is a closed ring of at
+ * most 5 points (a triangle, or a quadrilateral if the triangle was
+ * clipped to the coast), whose last point repeats its first.
+ * OutputPolygon objects are meant to be reused from one triangle to
+ * the next.
+ */
+
+package edu.unca.nemac.gis;
+
+class OutputPolygon {
+
+    /**
+     * Coordinates of the polygon's points; only the first npoints
+     * entries are meaningful.
+     */
+    public double x[] = new double[5];
+    public double y[] = new double[5];
+    public int npoints;
+
+    /**
+     * The triangle this polygon came from, and the timestep.
+     */
+    public Triangle triangle;
+    public int time;
+
+    /**
+     * The grid file numbers of the triangle and of its 3 vertices, for
+     * the debugging fields.
+     */
+    public int tindex;
+    public int vindices[] = new int[3];
+
+    /**
+     * Attribute values for the polygon.
+     */
+    public double depth;
+    public double floodlevel;
+    public double level63;
+
+    /**
+     * The kind of change, in a delta frame change file (see
+     * DeltaFrame), or null.
+     */
+    public String change;
+
+    public void clear(Triangle triangle, int time) {
+        this.triangle = triangle;
+        this.time     = time;
+        this.npoints  = 0;
+        this.change   = null;
+    }
+
+    public void add(double x, double y) {
+        this.x[npoints] = x;
+        this.y[npoints] = y;
+        ++npoints;
+    }
+
+    /**
+     * Close the ring by repeating its first point.
+     */
+    public void close() {
+        add(x[0], y[0]);
+    }
+
+}
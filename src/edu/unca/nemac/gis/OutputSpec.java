@@ -0,0 +1,111 @@
+/*
+ * This file is part of AcToShape
+ * by Mark Phillips
+ * mphillip@unca.edu
+ *
+ * Copyright (c) 2009  University of North Carolina at Asheville
+ * Licensed under the RENCI Open Source Software License v. 1.0.
+ * See the file LICENSE.txt for details.
+ */
+
+/**
+ * OutputSpec describes one output to be written from a loaded mesh:
+ * the file name, which timesteps to write, and how the polygons are
+ * clipped and their attributes computed.  Several OutputSpecs can be
+ * written from one mesh in a single pass over its triangles.
+ */
+
+package edu.unca.nemac.gis;
+
+class OutputSpec {
+
+    /**
+     * Output file name, or base name for a series of files.
+     */
+    public String filename;
+
+    /**
+     * Timestep to write (counting from 0), or -1 to write all of them.
+     */
+    public int timestep = -1;
+
+    public boolean clipcoast = false;
+    public double cliplevel = 0.0;
+    public boolean interpolate = false;
+
+    /**
+     * First timestep still to be written; the ones before it were
+     * written by an earlier incremental run.
+     */
+    public int firstTimestep = 0;
+
+    /**
+     * What has been written so far, for a series written as delta
+     * frames; null otherwise.
+     */
+    public DeltaFrame delta = null;
+
+    public OutputSpec(String filename, int timestep, boolean clipcoast, double cliplevel, boolean interpolate) {
+        this.filename    = filename;
+        this.timestep    = timestep;
+        this.clipcoast   = clipcoast;
+        this.cliplevel   = cliplevel;
+        this.interpolate = interpolate;
+    }
+
+    /**
+     * Test whether this output includes the given timestep.
+     */
+    public boolean wants(int time) {
+        return time >= firstTimestep && (timestep < 0 || timestep == time);
+    }
+
+    /**
+     * Return the settings of this spec (but not its file name) as a
+     * string, for recording which options an output was written with.
+     */
+    public String settings() {
+        return String.format("timestep=%d clipcoast=%b cliplevel=%s interpolate=%b",
+                             timestep, clipcoast, cliplevel, interpolate);
+    }
+
+    /**
+     * Parse an output spec of the form
+     * <pre>
+     *      FILENAME[,clipcoast[=LEVEL]][,interpolate][,timestep=N]
+     * </pre>
+     * Settings not given in the spec are taken from the defaults.
+     */
+    public static OutputSpec parse(String spec, OutputSpec defaults) {
+        String fields[] = spec.split(",");
+        OutputSpec o = new OutputSpec(fields[0], defaults.timestep, defaults.clipcoast,
+                                      defaults.cliplevel, defaults.interpolate);
+        if (o.filename.length() == 0) {
+            throw new IllegalArgumentException(String.format("output spec '%s' has no file name", spec));
+        }
+        try {
+            for (int i=1; i<fields.length; ++i) {
+                String name = fields[i], value = null;
+                int eq = name.indexOf('=');
+                if (eq >= 0) {
+                    value = name.substring(eq+1);
+                    name = name.substring(0, eq);
+                }
+                if (name.equals("clipcoast") || name.equals("c")) {
+                    o.clipcoast = true;
+                    o.cliplevel = (value != null) ? Double.parseDouble(value) : 0.0;
+                } else if (name.equals("interpolate") || name.equals("i")) {
+                    o.interpolate = true;
+                } else if ((name.equals("timestep") || name.equals("t")) && value != null) {
+                    o.timestep = Integer.parseInt(value) - 1;
+                } else {
+                    throw new IllegalArgumentException(String.format("unrecognized setting '%s' in output spec '%s'", fields[i], spec));
+                }
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(String.format("bad number in output spec '%s'", spec));
+        }
+        return o;
+    }
+
+}
@@ -0,0 +1,36 @@
+/*
+ * This file is part of AcToShape
+ * by Mark Phillips
+ * mphillip@unca.edu
+ *
+ * Copyright (c) 2009  University of North Carolina at Asheville
+ * Licensed under the RENCI Open Source Software License v. 1.0.
+ * See the file LICENSE.txt for details.
+ */
+
+/**
+ * PolygonWriter is the interface for the output formats that
+ * actoshape can write.  The polygons for one timestep are passed to
+ * write() one at a time, as they are computed from the mesh; the
+ * OutputPolygon passed in is reused for the next polygon, so
+ * implementations must copy anything they need from it before
+ * returning.
+ */
+
+package edu.unca.nemac.gis;
+
+interface PolygonWriter {
+
+    /**
+     * Write a polygon, returning true if it was written, or false if
+     * the format has no way to write it (a polygon clipped away to no
+     * points, for instance) and it was skipped.
+     */
+    public boolean write(OutputPolygon poly) throws Exception;
+
+    /**
+     * Finish writing the output; the output is complete when this returns.
+     */
+    public void close() throws Exception;
+
+}
@@ -0,0 +1,227 @@
+/*
+ * This file is part of AcToShape
+ * by Mark Phillips
+ * mphillip@unca.edu
+ *
+ * Copyright (c) 2009  University of North Carolina at Asheville
+ * Licensed under the RENCI Open Source Software License v. 1.0.
+ * See the file LICENSE.txt for details.
+ */
+
+/**
+ * QixIndex builds a quadtree spatial index for the shapes in a
+ * shapefile and writes it as a ".qix" file, in the format written by
+ * MapServer's "shptree" utility and read by MapServer, GDAL/OGR, and
+ * GeoServer.  Shapes are added with their bounding boxes as they are
+ * written to the shapefile, so the index can be written as soon as
+ * the shapefile is closed, without reading it back.
+ *
+ * The tree is built the same way shptree builds it: each node covers
+ * a box that is split (with some overlap) into 4 quadrants, and each
+ * shape is stored in the deepest node whose box contains it entirely.
+ */
+
+package edu.unca.nemac.gis;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+class QixIndex {
+
+    /**
+     * Fraction of a node's longer side covered by each half when it is
+     * split; halves overlap a little so that small shapes straddling
+     * the middle can still go into a subnode.
+     */
+    private static final double SPLITRATIO = 0.55;
+
+    private double bounds[] = new double[4*1024];
+    private int nshapes = 0;
+
+    /**
+     * Record the bounding box of the next shape written to the shapefile.
+     * Shapes are numbered from 0 in the order they are added.
+     */
+    public void add(double minx, double miny, double maxx, double maxy) {
+        if (4*(nshapes+1) > bounds.length) {
+            double b[] = new double[2*bounds.length];
+            System.arraycopy(bounds, 0, b, 0, bounds.length);
+            bounds = b;
+        }
+        int k = 4*nshapes++;
+        bounds[k]   = minx;
+        bounds[k+1] = miny;
+        bounds[k+2] = maxx;
+        bounds[k+3] = maxy;
+    }
+
+    public int getNumShapes() {
+        return nshapes;
+    }
+
+    private static class Node {
+        double minx, miny, maxx, maxy;
+        int ids[] = null;
+        int nids = 0;
+        Node subnodes[] = null;
+
+        Node(double minx, double miny, double maxx, double maxy) {
+            this.minx = minx;
+            this.miny = miny;
+            this.maxx = maxx;
+            this.maxy = maxy;
+        }
+
+        boolean contains(double b[], int k) {
+            return b[k] >= minx && b[k+1] >= miny && b[k+2] <= maxx && b[k+3] <= maxy;
+        }
+
+        void addId(int id) {
+            if (ids == null) {
+                ids = new int[4];
+            } else if (nids == ids.length) {
+                int a[] = new int[2*ids.length];
+                System.arraycopy(ids, 0, a, 0, nids);
+                ids = a;
+            }
+            ids[nids++] = id;
+        }
+
+        // returns the two halves of this node's box, split across its longer side
+        Node[] split() {
+            Node a = new Node(minx, miny, maxx, maxy);
+            Node b = new Node(minx, miny, maxx, maxy);
+            if (maxx - minx > maxy - miny) {
+                double range = maxx - minx;
+                a.maxx = minx + range * SPLITRATIO;
+                b.minx = maxx - range * SPLITRATIO;
+            } else {
+                double range = maxy - miny;
+                a.maxy = miny + range * SPLITRATIO;
+                b.miny = maxy - range * SPLITRATIO;
+            }
+            return new Node[] { a, b };
+        }
+
+        void add(int id, double b[], int k, int maxdepth) {
+            if (maxdepth > 1) {
+                if (subnodes == null) {
+                    Node halves[] = split();
+                    Node h1[] = halves[0].split();
+                    Node h2[] = halves[1].split();
+                    Node quads[] = new Node[] { h1[0], h1[1], h2[0], h2[1] };
+                    for (Node q : quads) {
+                        if (q.contains(b, k)) {
+                            subnodes = quads;
+                            break;
+                        }
+                    }
+                }
+                if (subnodes != null) {
+                    for (Node q : subnodes) {
+                        if (q.contains(b, k)) {
+                            q.add(id, b, k, maxdepth-1);
+                            return;
+                        }
+                    }
+                }
+            }
+            addId(id);
+        }
+
+        // drop empty subtrees; returns true if this node is itself empty
+        boolean trim() {
+            if (subnodes != null) {
+                int n = 0;
+                for (Node q : subnodes) {
+                    if (!q.trim()) { ++n; }
+                }
+                if (n == 0) {
+                    subnodes = null;
+                } else if (n < subnodes.length) {
+                    Node kept[] = new Node[n];
+                    n = 0;
+                    for (Node q : subnodes) {
+                        if (q.nids > 0 || q.subnodes != null) { kept[n++] = q; }
+                    }
+                    subnodes = kept;
+                }
+            }
+            return nids == 0 && subnodes == null;
+        }
+
+        // number of bytes the subtrees below this node occupy in the file
+        int subtreeBytes() {
+            int bytes = 0;
+            if (subnodes != null) {
+                for (Node q : subnodes) {
+                    bytes += 32 + 4*(q.nids + 3) + q.subtreeBytes();
+                }
+            }
+            return bytes;
+        }
+
+        void write(OutputStream out) throws IOException {
+            ByteBuffer buf = ByteBuffer.allocate(4 + 32 + 4 + 4*nids + 4);
+            buf.order(ByteOrder.LITTLE_ENDIAN);
+            buf.putInt(subtreeBytes());
+            buf.putDouble(minx);
+            buf.putDouble(miny);
+            buf.putDouble(maxx);
+            buf.putDouble(maxy);
+            buf.putInt(nids);
+            for (int i=0; i<nids; ++i) {
+                buf.putInt(ids[i]);
+            }
+            buf.putInt((subnodes == null) ? 0 : subnodes.length);
+            out.write(buf.array());
+            if (subnodes != null) {
+                for (Node q : subnodes) {
+                    q.write(out);
+                }
+            }
+        }
+    }
+
+    /**
+     * Build the quadtree and write it to the named file.
+     */
+    public void write(String filename) throws IOException {
+        Node root = new Node(Double.MAX_VALUE, Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE);
+        for (int k=0; k<4*nshapes; k+=4) {
+            root.minx = Math.min(root.minx, bounds[k]);
+            root.miny = Math.min(root.miny, bounds[k+1]);
+            root.maxx = Math.max(root.maxx, bounds[k+2]);
+            root.maxy = Math.max(root.maxy, bounds[k+3]);
+        }
+
+        // same default depth as shptree: about 8 shapes per leaf if they were evenly spread
+        int maxdepth = 0;
+        for (int numnodes=1; numnodes*4 < nshapes; numnodes*=2) {
+            ++maxdepth;
+        }
+
+        for (int id=0; id<nshapes; ++id) {
+            root.add(id, bounds, 4*id, maxdepth);
+        }
+        root.trim();
+
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(filename), 1 << 16);
+        ByteBuffer header = ByteBuffer.allocate(16);
+        header.order(ByteOrder.LITTLE_ENDIAN);
+        header.put((byte)'S').put((byte)'Q').put((byte)'T');
+        header.put((byte)1);    // byte order of the rest of the file: 1 = LSB first
+        header.put((byte)1);    // version
+        header.put((byte)0).put((byte)0).put((byte)0);
+        header.putInt(nshapes);
+        header.putInt(maxdepth);
+        out.write(header.array());
+        root.write(out);
+        out.close();
+    }
+
+}
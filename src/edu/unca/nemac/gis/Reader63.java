@@ -10,22 +10,37 @@
 
 package edu.unca.nemac.gis;
 
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 public class Reader63 {
-    BufferedReader br;
+    InputStream in;
+    byte buf[] = new byte[1 << 16];
+    int pos = 0, len = 0;
+    long offset;
+    boolean ended = true;
     String bufferedLine;
     Pattern pat;
     public Reader63(String file) throws Exception {
-        br = new BufferedReader(new FileReader(new File(file)));
+        this(file, 0);
+    }
+    /**
+     * Open the file to read from the given byte offset of its contents
+     * (after decompression, if it is compressed).
+     */
+    public Reader63(String file, long offset) throws Exception {
+        in = CompressedInput.open(file, offset);
+        this.offset = offset;
         bufferedLine = null;
         // 43200.000000 432001 0.003712
         pat = Pattern.compile("^(\\S+\\s+\\S+)(1\\s+\\S+)$");
     }
+    /**
+     * Return the next line, or null at the end of the file.
+     */
     public String readLine() throws Exception {
         if (bufferedLine != null) {
             String s = bufferedLine;
@@ -34,8 +49,9 @@ public class Reader63 {
         }
         String line;
         while (true) {
-            line = br.readLine().trim();
+            line = nextLine();
             if (line == null) { break; }
+            line = line.trim();
             if (line.length() == 0) { continue; }
             Matcher m = pat.matcher(line);
             if (m.matches()) {
@@ -46,7 +62,59 @@ public class Reader63 {
         }
         return line;
     }
+    /**
+     * Return the byte offset of the next line in the file, or -1 if the
+     * next line is the second half of a line that was split in two.
+     */
+    public long getOffset() {
+        return (bufferedLine != null) ? -1 : offset;
+    }
+    /**
+     * Return false if the last line read ran into the end of the file
+     * without an end of line, as the last line of a file that is still
+     * being written may.
+     */
+    public boolean lineEnded() {
+        return ended;
+    }
+    // read the next line from the file, without its end-of-line
+    private String nextLine() throws IOException {
+        int start = pos;
+        while (true) {
+            for (int i=start; i<len; ++i) {
+                if (buf[i] == '\n') {
+                    String line = new String(buf, pos, i - pos, StandardCharsets.ISO_8859_1);
+                    offset += i + 1 - pos;
+                    pos = i + 1;
+                    ended = true;
+                    return line;
+                }
+            }
+            // no end of line in the buffer; move the partial line to the
+            // front, making room if it fills the buffer, and read more
+            start = len - pos;
+            if (pos > 0) {
+                System.arraycopy(buf, pos, buf, 0, len - pos);
+            } else if (len == buf.length) {
+                byte b[] = new byte[2 * buf.length];
+                System.arraycopy(buf, 0, b, 0, len);
+                buf = b;
+            }
+            len -= pos;
+            pos = 0;
+            int n = in.read(buf, len, buf.length - len);
+            if (n < 0) {
+                if (len == 0) { return null; }
+                String line = new String(buf, 0, len, StandardCharsets.ISO_8859_1);
+                offset += len;
+                pos = len;
+                ended = false;
+                return line;
+            }
+            len += n;
+        }
+    }
     public void close() throws Exception {
-        br.close();
+        in.close();
     }
 }
@@ -0,0 +1,96 @@
+/*
+ * This file is part of AcToShape
+ * by Mark Phillips
+ * mphillip@unca.edu
+ *
+ * Copyright (c) 2009  University of North Carolina at Asheville
+ * Licensed under the RENCI Open Source Software License v. 1.0.
+ * See the file LICENSE.txt for details.
+ */
+
+/**
+ * RingSequence is a CoordinateSequence holding the ring of an
+ * OutputPolygon, which can be refilled in place from the polygon's x
+ * and y arrays.  A LinearRing and Polygon built on a RingSequence can
+ * then be reused for every polygon written, rather than allocating a
+ * new Coordinate array, sequence, ring, and polygon for each one.
+ *
+ * This version of JTS hands out the points of a sequence as Coordinate
+ * objects, so a RingSequence allocates one Coordinate for each of the
+ * (at most 5) points once, and overwrites their values when it is
+ * refilled.  Geometries cache their envelopes, so geometryChanged()
+ * must be called on the Polygon after each refill.
+ */
+
+package edu.unca.nemac.gis;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.CoordinateSequence;
+
+class RingSequence implements CoordinateSequence {
+
+    private static final int MAXPOINTS = 5;
+
+    private Coordinate coords[] = new Coordinate[MAXPOINTS];
+    private int npoints = 0;
+
+    // arrays[n] holds the first n Coordinates, for toCoordinateArray()
+    private Coordinate arrays[][] = new Coordinate[MAXPOINTS+1][];
+
+    public RingSequence() {
+        for (int i=0; i<MAXPOINTS; ++i) {
+            coords[i] = new Coordinate();
+        }
+    }
+
+    /**
+     * Replace the points of the sequence with the first npoints points
+     * of x and y.
+     */
+    public void set(double x[], double y[], int npoints) {
+        for (int i=0; i<npoints; ++i) {
+            coords[i].x = x[i];
+            coords[i].y = y[i];
+        }
+        this.npoints = npoints;
+    }
+
+    public void set(OutputPolygon poly) {
+        set(poly.x, poly.y, poly.npoints);
+    }
+
+    public Coordinate getCoordinate(int i) {
+        return coords[i];
+    }
+
+    public int size() {
+        return npoints;
+    }
+
+    public Coordinate[] toCoordinateArray() {
+        if (arrays[npoints] == null) {
+            arrays[npoints] = new Coordinate[npoints];
+            System.arraycopy(coords, 0, arrays[npoints], 0, npoints);
+        }
+        return arrays[npoints];
+    }
+
+    public Object clone() {
+        RingSequence s = new RingSequence();
+        for (int i=0; i<npoints; ++i) {
+            s.coords[i].setCoordinate(coords[i]);
+        }
+        s.npoints = npoints;
+        return s;
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder("(");
+        for (int i=0; i<npoints; ++i) {
+            if (i > 0) { sb.append(", "); }
+            sb.append(coords[i].x).append(" ").append(coords[i].y);
+        }
+        return sb.append(")").toString();
+    }
+
+}
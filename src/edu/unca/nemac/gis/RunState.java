@@ -0,0 +1,137 @@
+/*
+ * This file is part of AcToShape
+ * by Mark Phillips
+ * mphillip@unca.edu
+ *
+ * Copyright (c) 2009  University of North Carolina at Asheville
+ * Licensed under the RENCI Open Source Software License v. 1.0.
+ * See the file LICENSE.txt for details.
+ */
+
+/**
+ * RunState is the record, kept in a small text file beside an output,
+ * of how far an incremental run (--incremental) got in writing it: the
+ * fingerprints of the input files and the options it was written
+ * with, the number of leading timesteps that are finished, and where
+ * the block of the last of those timesteps starts in the .63 file, so
+ * that a later run with the same inputs and options can pick up after
+ * it without reading the .63 file from the beginning.
+ */
+
+package edu.unca.nemac.gis;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+import java.util.zip.CRC32;
+
+class RunState {
+
+    public String grid;         // fingerprint of the grid file
+    public String input63;      // fingerprint of the .63 file's header and first timestep
+    public String options;      // options the output was written with
+    public int steps = 0;       // number of leading timesteps finished
+    public long offset = 0;     // offset in the .63 file of the block of timestep steps-1
+    public String mark = "";    // first line of that block
+
+    public RunState(String grid, String input63, String options) {
+        this.grid    = grid;
+        this.input63 = input63;
+        this.options = options;
+    }
+
+    /**
+     * Return the name of the state file for an output.
+     */
+    public static String filename(OutputSpec spec) {
+        return spec.filename.replaceAll("\\.shp$", "").replaceAll("\\.SHP$", "") + ".actoshape";
+    }
+
+    /**
+     * Test whether this state was recorded with the same inputs and
+     * options as another.
+     */
+    public boolean matches(RunState other) {
+        return grid.equals(other.grid) && input63.equals(other.input63) && options.equals(other.options);
+    }
+
+    /**
+     * Read a state file, returning null if there isn't one or it can't
+     * be understood.
+     */
+    public static RunState read(String filename) {
+        if (!(new File(filename)).exists()) {
+            return null;
+        }
+        try {
+            Properties p = new Properties();
+            InputStream in = new FileInputStream(filename);
+            p.load(in);
+            in.close();
+            RunState state = new RunState(p.getProperty("grid"), p.getProperty("input63"), p.getProperty("options"));
+            state.steps  = Integer.parseInt(p.getProperty("steps"));
+            state.offset = Long.parseLong(p.getProperty("offset"));
+            state.mark   = p.getProperty("mark");
+            if (state.grid == null || state.input63 == null || state.options == null || state.mark == null) {
+                return null;
+            }
+            return state;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * Write the state file, replacing it all at once, so that it is
+     * never left half written if the run is interrupted.
+     */
+    public void write(String filename) throws IOException {
+        File tmp = new File(filename + ".tmp");
+        Properties p = new Properties();
+        p.setProperty("grid",    grid);
+        p.setProperty("input63", input63);
+        p.setProperty("options", options);
+        p.setProperty("steps",   String.valueOf(steps));
+        p.setProperty("offset",  String.valueOf(offset));
+        p.setProperty("mark",    mark);
+        FileWriter out = new FileWriter(tmp);
+        p.store(out, "actoshape incremental run state");
+        out.close();
+        Files.move(tmp.toPath(), (new File(filename)).toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Return a fingerprint of a file's contents: its length and CRC-32.
+     */
+    public static String fingerprint(String filename) throws IOException {
+        CRC32 crc = new CRC32();
+        InputStream in = new FileInputStream(filename);
+        byte buf[] = new byte[1 << 16];
+        long length = 0;
+        int n;
+        while ((n = in.read(buf)) > 0) {
+            crc.update(buf, 0, n);
+            length += n;
+        }
+        in.close();
+        return String.format("%d:%08x", length, crc.getValue());
+    }
+
+    /**
+     * Return a fingerprint of some lines of text.
+     */
+    public static String fingerprint(String lines[]) {
+        CRC32 crc = new CRC32();
+        for (String line : lines) {
+            crc.update(line.getBytes());
+            crc.update('\n');
+        }
+        return String.format("%08x", crc.getValue());
+    }
+
+}
@@ -21,6 +21,10 @@ import org.geotools.data.shapefile.ShapefileDataStore;
 import org.geotools.feature.Feature;
 import org.geotools.feature.FeatureType;
 
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.Polygon;
+
 
 public class ShapefileExporter {
 
@@ -30,6 +34,32 @@ public class ShapefileExporter {
     private FeatureType featureType;
     private String prj = WGS84_ESRI_PRJ;
     private boolean firstTime = true;
+    private QixIndex qix = null;
+    private long maxBytes = MAX_FILE_BYTES;
+    private long shpBytes = 0;
+    private long dbfBytes = 0;
+    private int dbfRecordBytes = 0;
+    private int geometryIndex = 0;
+
+    /**
+     * Largest .shp or .dbf file that may be written.  Offsets in .shx
+     * files are signed 32-bit numbers of 16-bit words, but most software
+     * treats them as byte offsets, so files past 2 GB are unreadable.
+     */
+    public final static long MAX_FILE_BYTES = Integer.MAX_VALUE;
+
+    /**
+     * Sizes of the parts of the .shp and .dbf files, for estimating their
+     * sizes before writing them: the .shp file header, the record header
+     * and the fixed part of a one-ring polygon, each point, the .dbf
+     * header with its terminator and the end-of-file mark, and each .dbf
+     * field descriptor.
+     */
+    public final static int SHP_HEADER_BYTES  = 100;
+    public final static int SHP_POLYGON_BYTES = 8 + 4 + 32 + 4 + 4 + 4;
+    public final static int SHP_POINT_BYTES   = 16;
+    public final static int DBF_HEADER_BYTES  = 32 + 1 + 1;
+    public final static int DBF_FIELD_BYTES   = 32;
 
     public final static String WGS84_ESRI_PRJ = "GEOGCS[\"GCS_WGS_1984\"," +
 	"DATUM[\"D_WGS_1984\"," +
@@ -47,6 +77,71 @@ public class ShapefileExporter {
     }
 
 
+    /**
+     * Also write a quadtree spatial index (".qix" file) for the
+     * shapefile when it is closed.
+     */
+    public void setSpatialIndex(boolean spatialIndex) {
+        this.qix = spatialIndex ? new QixIndex() : null;
+    }
+
+    /**
+     * Set the size limit for the .shp and .dbf files; addFeature() fails
+     * rather than write past it.
+     */
+    public void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Return the number of bytes written to the .shp and .dbf files so far.
+     */
+    public long getShpBytes() {
+        return shpBytes;
+    }
+
+    public long getDbfBytes() {
+        return dbfBytes;
+    }
+
+    /**
+     * Return the length of a .dbf record for features of the given type.
+     */
+    public static int dbfRecordBytes(FeatureType featureType) {
+        int bytes = 1;          // deletion flag
+        for (int i=0; i<featureType.getAttributeCount(); ++i) {
+            if (!featureType.getAttributeType(i).isGeometry()) {
+                bytes += featureType.getAttributeType(i).getFieldLength();
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Return the size of the .dbf header for features of the given type.
+     */
+    public static int dbfHeaderBytes(FeatureType featureType) {
+        int nfields = 0;
+        for (int i=0; i<featureType.getAttributeCount(); ++i) {
+            if (!featureType.getAttributeType(i).isGeometry()) { ++nfields; }
+        }
+        return DBF_HEADER_BYTES + DBF_FIELD_BYTES * nfields;
+    }
+
+    // index of the default geometry among a feature type's attributes
+    private static int geometryIndex(FeatureType featureType) {
+        for (int i=0; i<featureType.getAttributeCount(); ++i) {
+            if (featureType.getAttributeType(i) == featureType.getDefaultGeometry()) { return i; }
+        }
+        return 0;
+    }
+
+    // size of the .shp record for a geometry
+    private static long shpRecordBytes(Geometry g) {
+        int nrings = (g instanceof Polygon) ? 1 + ((Polygon)g).getNumInteriorRing() : 1;
+        return SHP_POLYGON_BYTES + 4*(nrings-1) + SHP_POINT_BYTES * g.getNumPoints();
+    }
+
     private void writePrj() throws IOException {
         BufferedWriter bw = new BufferedWriter(new FileWriter(outfileBase+".prj"));
         bw.write(prj);
@@ -64,25 +159,49 @@ public class ShapefileExporter {
 
 
     public void addFeature(Feature feature) throws Exception {
+	addFeature(feature.getFeatureType(), feature.getAttributes(null));
+    }
+
+    /**
+     * Add a feature given by its type and attribute values, without a
+     * Feature object.  The values are written before this returns, so
+     * the caller may reuse the array, and the geometry in it, for the
+     * next feature.
+     */
+    public void addFeature(FeatureType type, Object att[]) throws Exception {
 	if (firstTime) {
 	    // Extract featureType from first feature
-	    this.featureType = feature.getFeatureType();
+	    this.featureType = type;
+	    geometryIndex = geometryIndex(featureType);
 	    shpInit();
 	    firstTime = false;
+	    shpBytes = SHP_HEADER_BYTES;
+	    dbfBytes = dbfHeaderBytes(featureType);
+	    dbfRecordBytes = dbfRecordBytes(featureType);
 	}
 
 	// Ignore and return if this feature type does not match
-	if (! feature.getFeatureType().equals(featureType)) {
+	if (type != featureType && ! type.equals(featureType)) {
 	    return;
 	}
 
-	Object[] att = null;
+	Geometry geometry = (Geometry)att[geometryIndex];
+	long shpRecord = shpRecordBytes(geometry);
+	if (shpBytes + shpRecord > maxBytes || dbfBytes + dbfRecordBytes > maxBytes) {
+	    throw new IOException(String.format("%s.shp: shapefile would be larger than %d bytes", outfileBase, maxBytes));
+	}
+
 	Feature writeFeature = fw.next();
-	att = feature.getAttributes(att);
 	for (int n=0; n<att.length; n++) {
 	    writeFeature.setAttribute(n, att[n]);  
 	}
 	fw.write();
+	shpBytes += shpRecord;
+	dbfBytes += dbfRecordBytes;
+	if (qix != null) {
+	    Envelope env = geometry.getEnvelopeInternal();
+	    qix.add(env.getMinX(), env.getMinY(), env.getMaxX(), env.getMaxY());
+	}
     }
 
 
@@ -91,6 +210,10 @@ public class ShapefileExporter {
 	if (fw != null) {
 	    fw.close();
 	    writePrj();
+	    if (qix != null) {
+	        qix.write(outfileBase + ".qix");
+	        qix = null;
+	    }
 	}
     }
 
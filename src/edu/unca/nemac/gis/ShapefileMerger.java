@@ -0,0 +1,187 @@
+/*
+ * This file is part of AcToShape
+ * by Mark Phillips
+ * mphillip@unca.edu
+ *
+ * Copyright (c) 2009  University of North Carolina at Asheville
+ * Licensed under the RENCI Open Source Software License v. 1.0.
+ * See the file LICENSE.txt for details.
+ */
+
+/**
+ * ShapefileMerger concatenates shapefiles that were written separately
+ * (in parallel, by ShapefileExporter) into one shapefile, as though
+ * their records had all been written to it in order.  The .shp and
+ * .dbf records are copied as they are, except that the .shp records
+ * are renumbered; the headers are those of the first file, with the
+ * lengths, record count, and bounding box fixed up; and the .shx
+ * file, and the .qix file if wanted, are rebuilt from the .shp records.
+ *
+ * All the files must have the same shape type and .dbf fields.
+ */
+
+package edu.unca.nemac.gis;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+class ShapefileMerger {
+
+    private static final int SHP_HEADER_BYTES = ShapefileExporter.SHP_HEADER_BYTES;
+    private static final int SHX_RECORD_BYTES = 8;
+
+    /**
+     * Merge the shapefiles with the given base names (without the
+     * ".shp"), in order, into the shapefile outfileBase, and delete
+     * them.  Names whose .shp file does not exist (because nothing was
+     * written to them) are skipped; if none exist, nothing is written.
+     * Returns the number of records in the merged shapefile.
+     */
+    public static int merge(String chunks[], String outfileBase, boolean spatialIndex) throws IOException {
+        ArrayList<String> parts = new ArrayList<String>();
+        for (String chunk : chunks) {
+            if ((new File(chunk + ".shp")).exists()) {
+                parts.add(chunk);
+            }
+        }
+        if (parts.isEmpty()) {
+            return 0;
+        }
+
+        // the merged header is the first one with the union of the
+        // bounding boxes (a box with xmin > xmax is empty)
+        ByteBuffer header = readHeader(parts.get(0) + ".shp", SHP_HEADER_BYTES);
+        double xmin = Double.MAX_VALUE, ymin = Double.MAX_VALUE, xmax = -Double.MAX_VALUE, ymax = -Double.MAX_VALUE;
+        long shpBytes = SHP_HEADER_BYTES;
+        int nrecords = 0;
+        for (String part : parts) {
+            ByteBuffer h = readHeader(part + ".shp", SHP_HEADER_BYTES);
+            if (h.getDouble(36) <= h.getDouble(52)) {
+                xmin = Math.min(xmin, h.getDouble(36));
+                ymin = Math.min(ymin, h.getDouble(44));
+                xmax = Math.max(xmax, h.getDouble(52));
+                ymax = Math.max(ymax, h.getDouble(60));
+            }
+            shpBytes += (new File(part + ".shp")).length() - SHP_HEADER_BYTES;
+            nrecords += (int)(((new File(part + ".shx")).length() - SHP_HEADER_BYTES) / SHX_RECORD_BYTES);
+        }
+        if (xmin <= xmax) {
+            header.putDouble(36, xmin).putDouble(44, ymin).putDouble(52, xmax).putDouble(60, ymax);
+        }
+
+        DataOutputStream shp = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(outfileBase + ".shp"), 1 << 16));
+        DataOutputStream shx = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(outfileBase + ".shx"), 1 << 16));
+        header.order(ByteOrder.BIG_ENDIAN).putInt(24, (int)(shpBytes / 2));
+        shp.write(header.array());
+        header.putInt(24, (SHP_HEADER_BYTES + SHX_RECORD_BYTES * nrecords) / 2);
+        shx.write(header.array());
+
+        QixIndex qix = spatialIndex ? new QixIndex() : null;
+        ByteBuffer content = ByteBuffer.allocate(1024).order(ByteOrder.LITTLE_ENDIAN);
+        long offset = SHP_HEADER_BYTES;
+        int recno = 0;
+        for (String part : parts) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(part + ".shp"), 1 << 16));
+            in.skipBytes(SHP_HEADER_BYTES);
+            long remaining = (new File(part + ".shp")).length() - SHP_HEADER_BYTES;
+            while (remaining > 0) {
+                in.readInt();                   // record number in the part
+                int words = in.readInt();       // content length, in 16-bit words
+                if (content.capacity() < 2 * words) {
+                    content = ByteBuffer.allocate(4 * words).order(ByteOrder.LITTLE_ENDIAN);
+                }
+                in.readFully(content.array(), 0, 2 * words);
+                shp.writeInt(++recno);
+                shp.writeInt(words);
+                shp.write(content.array(), 0, 2 * words);
+                shx.writeInt((int)(offset / 2));
+                shx.writeInt(words);
+                if (qix != null) {
+                    // the box follows the shape type; shapes with no box
+                    // were indexed with an empty one
+                    if (2 * words >= 36) {
+                        qix.add(content.getDouble(4), content.getDouble(12), content.getDouble(20), content.getDouble(28));
+                    } else {
+                        qix.add(0, 0, -1, -1);
+                    }
+                }
+                offset += 8 + 2 * words;
+                remaining -= 8 + 2 * words;
+            }
+            in.close();
+        }
+        shp.close();
+        shx.close();
+        if (qix != null) {
+            qix.write(outfileBase + ".qix");
+        }
+
+        mergeDbf(parts, outfileBase + ".dbf");
+
+        // the .prj files are all the same
+        File prj = new File(outfileBase + ".prj");
+        prj.delete();
+        (new File(parts.get(0) + ".prj")).renameTo(prj);
+        for (String part : parts) {
+            for (String suffix : new String[] { ".shp", ".shx", ".dbf", ".prj" }) {
+                (new File(part + suffix)).delete();
+            }
+        }
+        return recno;
+    }
+
+    // concatenate the records of the .dbf files, under the first one's
+    // header with the total record count
+    private static void mergeDbf(ArrayList<String> parts, String filename) throws IOException {
+        ByteBuffer h = readHeader(parts.get(0) + ".dbf", 12);
+        int headerBytes = h.getShort(8) & 0xffff;
+        int recordBytes = h.getShort(10) & 0xffff;
+        int nrecords = 0;
+        for (String part : parts) {
+            nrecords += readHeader(part + ".dbf", 12).getInt(4);
+        }
+        ByteBuffer header = readHeader(parts.get(0) + ".dbf", headerBytes);
+        header.putInt(4, nrecords);
+
+        FileChannel out = (new FileOutputStream(filename)).getChannel();
+        out.write(header);
+        for (int p=0; p<parts.size(); ++p) {
+            FileChannel in = (new RandomAccessFile(parts.get(p) + ".dbf", "r")).getChannel();
+            long start = headerBytes;
+            long count = (long)readHeader(parts.get(p) + ".dbf", 12).getInt(4) * recordBytes;
+            if (p == parts.size()-1) {
+                // keep whatever follows the records of the last file
+                count = in.size() - start;
+            }
+            while (count > 0) {
+                long n = in.transferTo(start, count, out);
+                start += n;
+                count -= n;
+            }
+            in.close();
+        }
+        out.close();
+    }
+
+    // read the first n bytes of a file, as little-endian
+    private static ByteBuffer readHeader(String filename, int n) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(n).order(ByteOrder.LITTLE_ENDIAN);
+        FileChannel in = (new RandomAccessFile(filename, "r")).getChannel();
+        while (b.hasRemaining() && in.read(b) >= 0) { }
+        in.close();
+        b.flip();
+        return b;
+    }
+
+}
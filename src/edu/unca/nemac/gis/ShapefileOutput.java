@@ -0,0 +1,61 @@
+/*
+ * This file is part of AcToShape
+ * by Mark Phillips
+ * mphillip@unca.edu
+ *
+ * Copyright (c) 2009  University of North Carolina at Asheville
+ * Licensed under the RENCI Open Source Software License v. 1.0.
+ * See the file LICENSE.txt for details.
+ */
+
+/**
+ * ShapefileOutput is the PolygonWriter for shapefiles: it hands each
+ * polygon, with its attribute values, to a ShapefileExporter.  The
+ * Polygon geometry (built on a RingSequence) and the array of
+ * attribute values are allocated once and refilled for each polygon,
+ * since the exporter is done with them once addFeature() returns.
+ */
+
+package edu.unca.nemac.gis;
+
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.Polygon;
+
+class ShapefileOutput implements PolygonWriter {
+
+    private AcToShape acToShape;
+    private ShapefileExporter se;
+    private RingSequence ring = new RingSequence();
+    private Polygon polygon;
+    private Object atts[];
+
+    public ShapefileOutput(AcToShape acToShape, String shapefilename, boolean spatialIndex) throws Exception {
+        this.acToShape = acToShape;
+        this.se = new ShapefileExporter(shapefilename);
+        se.setSpatialIndex(spatialIndex);
+        GeometryFactory gf = acToShape.gf;
+        polygon = gf.createPolygon(gf.createLinearRing(ring), null);
+        atts = new Object[acToShape.schema.getAttributeCount()];
+        atts[0] = polygon;
+    }
+
+    /**
+     * Set the size limit for the .shp and .dbf files.
+     */
+    public void setMaxBytes(long maxBytes) {
+        se.setMaxBytes(maxBytes);
+    }
+
+    public boolean write(OutputPolygon poly) throws Exception {
+        ring.set(poly);
+        polygon.geometryChanged();
+        acToShape.polygonAttributes(poly, atts);
+        se.addFeature(acToShape.schema, atts);
+        return true;
+    }
+
+    public void close() throws Exception {
+        se.close();
+    }
+
+}
@@ -48,6 +48,12 @@ class Triangle {
      */
     public int index;
 
+    /**
+     * Position of this triangle in the mesh's triangle array, used to find
+     * its levels in a LevelSeries when they are not held in its own arrays.
+     */
+    public int slot = -1;
+
     /**
      * Create a new triangle with the given vertex indices.
      */
@@ -66,43 +72,36 @@ class Triangle {
      * @param timesteps         number of timesteps in the simulation
      */
     public void compute(Vertex vertices[], int timesteps) {
-        // compute average depth
-        this.depth = 0;
-        for (int i=0; i<3; ++i) {
-            this.depth += vertices[vertex_indices[i]].depth;
-        }
-        this.depth /= 3;
+        computeDepth(vertices);
 
         // Allocate and compute the level63 and floodlevel arrays;
         // they're just averages of the corresponding values at the
-        // Triangle's vertices.
+        // Triangle's vertices.  The vertices' arrays are fetched once,
+        // so that each loop just streams through four arrays (with the
+        // Vector API, if LevelKernel.useVector() was called).
         this.level63 = new double[timesteps];
         this.floodlevel = new double[timesteps];
-        Vertex p;
-        for (int time=0; time<timesteps; ++time) {
-            this.level63[time] = 0;
-            this.floodlevel[time] = 0;
-            for (int i=0; i<3; ++i) {
-                p = vertices[vertex_indices[i]];
-                this.level63[time] += p.level63[time];
-                this.floodlevel[time] += p.floodlevel[time];
-            }
-            this.level63[time] /= 3;
-            this.floodlevel[time] /= 3;
-
-            //      if (this.level63[time] < -10000) {
-            //System.out.printf("level63[%1d]=%f, floodlevel[%1d]=%f\n", time, this.level63[time], time, this.floodlevel[time]);
-            //System.out.printf("  vertex level63s: %f, %f, %f\n",
-            //            vertices[this.vertex_indices[0]].level63[time],
-            //            vertices[this.vertex_indices[1]].level63[time],
-            //            vertices[this.vertex_indices[2]].level63[time]);
-            //System.out.printf("  vertex floodlevels: %f, %f, %f\n",
-            //            vertices[this.vertex_indices[0]].floodlevel[time],
-            //            vertices[this.vertex_indices[1]].floodlevel[time],
-            //            vertices[this.vertex_indices[2]].floodlevel[time]);
-            //      }
+        Vertex p0 = vertices[vertex_indices[0]];
+        Vertex p1 = vertices[vertex_indices[1]];
+        Vertex p2 = vertices[vertex_indices[2]];
+        LevelKernel.average(p0.level63, p1.level63, p2.level63, this.level63, timesteps);
+        LevelKernel.average(p0.floodlevel, p1.floodlevel, p2.floodlevel, this.floodlevel, timesteps);
+    }
 
+    /**
+     * Compute just this Triangle's average depth, leaving the level63
+     * and floodlevel arrays unallocated.  This is used when the
+     * vertex levels are kept out of core; the triangle's levels are
+     * then averaged from its vertices as each timestep is written.
+     *
+     * @param vertices          array of vertices for the mesh
+     */
+    public void computeDepth(Vertex vertices[]) {
+        this.depth = 0;
+        for (int i=0; i<3; ++i) {
+            this.depth += vertices[vertex_indices[i]].depth;
         }
+        this.depth /= 3;
     }
 
     /**
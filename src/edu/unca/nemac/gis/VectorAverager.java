@@ -0,0 +1,61 @@
+/*
+ * This file is part of AcToShape
+ * by Mark Phillips
+ * mphillip@unca.edu
+ *
+ * Copyright (c) 2009  University of North Carolina at Asheville
+ * Licensed under the RENCI Open Source Software License v. 1.0.
+ * See the file LICENSE.txt for details.
+ */
+
+/**
+ * VectorAverager runs LevelKernel's averaging loops with the
+ * incubating Vector API (jdk.incubator.vector), a full SIMD register
+ * of values at a time, and leaves the last few values of each loop to
+ * the scalar loops.  The lanes are summed in the same order as the
+ * scalar loops, so the results are identical.
+ *
+ * It is compiled separately with --add-modules jdk.incubator.vector
+ * (see build.xml), and only LevelKernel.useVector() loads it, after
+ * checking that the module is present.
+ */
+
+package edu.unca.nemac.gis;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorSpecies;
+
+class VectorAverager extends LevelKernel.Averager {
+
+    private static final VectorSpecies<Double> S = DoubleVector.SPECIES_PREFERRED;
+
+    void gather(double v[], int a[], int b[], int c[], double out[], int from, int to) {
+        int i = from;
+        for (int end = from + S.loopBound(to - from); i<end; i+=S.length()) {
+            DoubleVector.zero(S)
+                .add(DoubleVector.fromArray(S, v, 0, a, i))
+                .add(DoubleVector.fromArray(S, v, 0, b, i))
+                .add(DoubleVector.fromArray(S, v, 0, c, i))
+                .div(3.0)
+                .intoArray(out, i);
+        }
+        super.gather(v, a, b, c, out, i, to);
+    }
+
+    void stream(double a[], double b[], double c[], double out[], int n) {
+        int i = 0;
+        for (int end = S.loopBound(n); i<end; i+=S.length()) {
+            DoubleVector.zero(S)
+                .add(DoubleVector.fromArray(S, a, i))
+                .add(DoubleVector.fromArray(S, b, i))
+                .add(DoubleVector.fromArray(S, c, i))
+                .div(3.0)
+                .intoArray(out, i);
+        }
+        // the scalar loop for the rest
+        for (; i<n; ++i) {
+            out[i] = (0.0 + a[i] + b[i] + c[i]) / 3;
+        }
+    }
+
+}
@@ -0,0 +1,529 @@
+/*
+ * This file is part of AcToShape
+ * by Mark Phillips
+ * mphillip@unca.edu
+ *
+ * Copyright (c) 2009  University of North Carolina at Asheville
+ * Licensed under the RENCI Open Source Software License v. 1.0.
+ * See the file LICENSE.txt for details.
+ */
+
+/**
+ * VectorTileWriter writes a pyramid of Mapbox Vector Tiles (MVT,
+ * version 2) in the spherical ("web") Mercator tiling scheme, for a
+ * range of zoom levels, from the polygons of one timestep.  Tiles are
+ * written as DIR/Z/X/Y.pbf, with a metadata.json file describing the
+ * pyramid in DIR.
+ *
+ * In each tile, polygons are clipped to the tile (plus a small
+ * buffer) and their coordinates quantized to the tile's 4096x4096
+ * grid.  A tile that would contain more than MAX_TILE_POLYGONS
+ * polygons --- which is what happens at the coarser zoom levels ---
+ * is generalized instead: the polygons' floodlevels are sampled on a
+ * grid of CELLS x CELLS cells, and runs of adjacent cells whose
+ * floodlevels fall in the same LEVEL_STEP interval are merged into
+ * rectangles.  The tiles of each zoom level are encoded and written
+ * in parallel, in the common fork/join pool, which the pyramids of
+ * several timesteps written at once (--pipeline) share.
+ */
+
+package edu.unca.nemac.gis;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+class VectorTileWriter implements PolygonWriter {
+
+    public static final String LAYER_NAME = "actoshape";
+
+    private static final int EXTENT = 4096;
+    private static final int BUFFER = 64;
+    private static final int MAX_TILE_POLYGONS = 4096;
+    private static final int CELLS = 256;
+    private static final double LEVEL_STEP = 0.1;
+    private static final double MAX_LATITUDE = 85.0511287798;
+
+    private String dir;
+    private int minzoom, maxzoom;
+    private int timestep = 0;
+
+    // Polygon rings (without their closing point) in Mercator coordinates
+    // scaled so that the whole world is [0,1] x [0,1], y increasing southward.
+    // Ring i is points start[i] .. start[i+1]-1.
+    private double px[] = new double[4096];
+    private double py[] = new double[4096];
+    private int start[] = new int[1025];
+    private float depth[] = new float[1024];
+    private float floodlevel[] = new float[1024];
+    private float level63[] = new float[1024];
+    private int npolygons = 0;
+    private double west = 180, south = 90, east = -180, north = -90;
+
+    /**
+     * @param dir        directory in which to write the tiles
+     * @param minzoom    coarsest zoom level to write
+     * @param maxzoom    finest zoom level to write
+     */
+    public VectorTileWriter(String dir, int minzoom, int maxzoom) {
+        this.dir      = dir;
+        this.minzoom  = minzoom;
+        this.maxzoom  = maxzoom;
+    }
+
+    public int getNumPolygons() {
+        return npolygons;
+    }
+
+    /**
+     * Add a polygon (in lon/lat coordinates) to the tiles.
+     */
+    public boolean write(OutputPolygon poly) {
+        int n = poly.npoints - 1;       // drop the closing point
+        if (n < 3) { return false; }
+        int s = start[npolygons];
+        if (s + n > px.length) {
+            px = grow(px, s + n);
+            py = grow(py, s + n);
+        }
+        if (npolygons + 2 > start.length) {
+            int a[] = new int[2*start.length];
+            System.arraycopy(start, 0, a, 0, start.length);
+            start = a;
+            depth      = grow(depth, start.length);
+            floodlevel = grow(floodlevel, start.length);
+            level63    = grow(level63, start.length);
+        }
+        for (int i=0; i<n; ++i) {
+            double lon = poly.x[i];
+            double lat = Math.max(-MAX_LATITUDE, Math.min(MAX_LATITUDE, poly.y[i]));
+            west  = Math.min(west, lon);
+            east  = Math.max(east, lon);
+            south = Math.min(south, lat);
+            north = Math.max(north, lat);
+            double sin = Math.sin(Math.toRadians(lat));
+            px[s+i] = (lon + 180) / 360;
+            py[s+i] = 0.5 - Math.log((1 + sin) / (1 - sin)) / (4 * Math.PI);
+        }
+        depth[npolygons]      = (float)poly.depth;
+        floodlevel[npolygons] = (float)poly.floodlevel;
+        level63[npolygons]    = (float)poly.level63;
+        timestep = poly.time;
+        ++npolygons;
+        start[npolygons] = s + n;
+        return true;
+    }
+
+    private static double[] grow(double a[], int min) {
+        double b[] = new double[Math.max(min, 2*a.length)];
+        System.arraycopy(a, 0, b, 0, a.length);
+        return b;
+    }
+
+    private static float[] grow(float a[], int min) {
+        float b[] = new float[Math.max(min, 2*a.length)];
+        System.arraycopy(a, 0, b, 0, a.length);
+        return b;
+    }
+
+    private static class IntList {
+        int a[] = new int[16];
+        int n = 0;
+        void add(int i) {
+            if (n == a.length) {
+                int b[] = new int[2*n];
+                System.arraycopy(a, 0, b, 0, n);
+                a = b;
+            }
+            a[n++] = i;
+        }
+    }
+
+    /**
+     * Write all of the tiles.
+     */
+    public void close() throws Exception {
+        ExecutorService pool = ForkJoinPool.commonPool();
+        for (int z=minzoom; z<=maxzoom; ++z) {
+            writeZoom(pool, z);
+        }
+        writeMetadata();
+    }
+
+    private void writeZoom(ExecutorService pool, final int z) throws Exception {
+        final int scale = 1 << z;
+        double margin = (double)BUFFER / EXTENT;
+
+        // find the tiles each polygon touches
+        Map<Long,IntList> tiles = new HashMap<Long,IntList>();
+        for (int i=0; i<npolygons; ++i) {
+            double minx = Double.MAX_VALUE, miny = Double.MAX_VALUE, maxx = -Double.MAX_VALUE, maxy = -Double.MAX_VALUE;
+            for (int k=start[i]; k<start[i+1]; ++k) {
+                minx = Math.min(minx, px[k]);
+                miny = Math.min(miny, py[k]);
+                maxx = Math.max(maxx, px[k]);
+                maxy = Math.max(maxy, py[k]);
+            }
+            int tx0 = Math.max(0,       (int)Math.floor(minx * scale - margin));
+            int ty0 = Math.max(0,       (int)Math.floor(miny * scale - margin));
+            int tx1 = Math.min(scale-1, (int)Math.floor(maxx * scale + margin));
+            int ty1 = Math.min(scale-1, (int)Math.floor(maxy * scale + margin));
+            for (int tx=tx0; tx<=tx1; ++tx) {
+                for (int ty=ty0; ty<=ty1; ++ty) {
+                    Long key = Long.valueOf(((long)tx << 32) | ty);
+                    IntList list = tiles.get(key);
+                    if (list == null) {
+                        list = new IntList();
+                        tiles.put(key, list);
+                    }
+                    list.add(i);
+                }
+            }
+        }
+
+        List<Future<Object>> results = new ArrayList<Future<Object>>();
+        for (Map.Entry<Long,IntList> e : tiles.entrySet()) {
+            final int tx = (int)(e.getKey().longValue() >>> 32);
+            final int ty = (int)(e.getKey().longValue() & 0xffffffffL);
+            final IntList list = e.getValue();
+            results.add(pool.submit(new Callable<Object>() {
+                    public Object call() throws Exception {
+                        writeTile(z, tx, ty, list);
+                        return null;
+                    }
+                }));
+        }
+        try {
+            for (Future<Object> f : results) {
+                f.get();
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception)e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private void writeTile(int z, int tx, int ty, IntList list) throws IOException {
+        Layer layer = new Layer();
+        if (list.n > MAX_TILE_POLYGONS) {
+            encodeMerged(layer, z, tx, ty, list);
+        } else {
+            encodeExact(layer, z, tx, ty, list);
+        }
+        if (layer.nfeatures == 0) { return; }
+        File tdir = new File(dir, z + File.separator + tx);
+        tdir.mkdirs();
+        FileOutputStream out = new FileOutputStream(new File(tdir, ty + ".pbf"));
+        out.write(layer.tile());
+        out.close();
+    }
+
+    //
+    // Exact tiles: each polygon is clipped to the tile and quantized.
+    //
+
+    private void encodeExact(Layer layer, int z, int tx, int ty, IntList list) {
+        int scale = 1 << z;
+        double xs[] = new double[16], ys[] = new double[16];
+        double wx[] = new double[16], wy[] = new double[16];
+        int qx[] = new int[16], qy[] = new int[16];
+        for (int j=0; j<list.n; ++j) {
+            int i = list.a[j];
+            int n = 0;
+            for (int k=start[i]; k<start[i+1]; ++k) {
+                xs[n] = (px[k] * scale - tx) * EXTENT;
+                ys[n] = (py[k] * scale - ty) * EXTENT;
+                ++n;
+            }
+            // clip against each side of the buffered tile
+            n = clip(xs, ys, n, wx, wy, 0, -BUFFER, false);
+            n = clip(wx, wy, n, xs, ys, 0, EXTENT + BUFFER, true);
+            n = clip(xs, ys, n, wx, wy, 1, -BUFFER, false);
+            n = clip(wx, wy, n, xs, ys, 1, EXTENT + BUFFER, true);
+            // quantize, dropping repeated points
+            int m = 0;
+            for (int k=0; k<n; ++k) {
+                int x = (int)Math.round(xs[k]), y = (int)Math.round(ys[k]);
+                if (m > 0 && x == qx[m-1] && y == qy[m-1]) { continue; }
+                qx[m] = x;
+                qy[m] = y;
+                ++m;
+            }
+            while (m > 1 && qx[m-1] == qx[0] && qy[m-1] == qy[0]) { --m; }
+            if (m < 3) { continue; }
+            layer.addPolygon(qx, qy, m, floodlevel[i], depth[i], level63[i], timestep);
+        }
+    }
+
+    /**
+     * Sutherland-Hodgman clipping of a polygon against one side of a box:
+     * keeps the part where coordinate 'axis' (0=x, 1=y) is >= limit, or
+     * <= limit if 'upper' is true.  Returns the number of output points.
+     */
+    private static int clip(double xs[], double ys[], int n, double ox[], double oy[],
+                            int axis, double limit, boolean upper) {
+        int m = 0;
+        for (int k=0; k<n; ++k) {
+            int l = (k+1) % n;
+            double a = (axis == 0) ? xs[k] : ys[k];
+            double b = (axis == 0) ? xs[l] : ys[l];
+            boolean ina = upper ? (a <= limit) : (a >= limit);
+            boolean inb = upper ? (b <= limit) : (b >= limit);
+            if (ina) {
+                ox[m] = xs[k];
+                oy[m] = ys[k];
+                ++m;
+            }
+            if (ina != inb) {
+                double f = (limit - a) / (b - a);
+                ox[m] = xs[k] + f * (xs[l] - xs[k]);
+                oy[m] = ys[k] + f * (ys[l] - ys[k]);
+                ++m;
+            }
+        }
+        return m;
+    }
+
+    //
+    // Generalized tiles: floodlevels are sampled on a grid of cells, and
+    // runs of cells with similar levels are merged into rectangles.
+    //
+
+    private void encodeMerged(Layer layer, int z, int tx, int ty, IntList list) {
+        int scale = 1 << z;
+        double cellsize = (double)EXTENT / CELLS;
+        float cells[] = new float[CELLS*CELLS];
+        Arrays.fill(cells, Float.NaN);
+        double xs[] = new double[16], ys[] = new double[16];
+        for (int j=0; j<list.n; ++j) {
+            int i = list.a[j];
+            int n = 0;
+            double minx = Double.MAX_VALUE, miny = Double.MAX_VALUE, maxx = -Double.MAX_VALUE, maxy = -Double.MAX_VALUE;
+            for (int k=start[i]; k<start[i+1]; ++k) {
+                xs[n] = (px[k] * scale - tx) * CELLS;
+                ys[n] = (py[k] * scale - ty) * CELLS;
+                minx = Math.min(minx, xs[n]);
+                miny = Math.min(miny, ys[n]);
+                maxx = Math.max(maxx, xs[n]);
+                maxy = Math.max(maxy, ys[n]);
+                ++n;
+            }
+            int cx0 = Math.max(0,       (int)Math.ceil(minx - 0.5));
+            int cy0 = Math.max(0,       (int)Math.ceil(miny - 0.5));
+            int cx1 = Math.min(CELLS-1, (int)Math.floor(maxx - 0.5));
+            int cy1 = Math.min(CELLS-1, (int)Math.floor(maxy - 0.5));
+            for (int cy=cy0; cy<=cy1; ++cy) {
+                for (int cx=cx0; cx<=cx1; ++cx) {
+                    if (inside(xs, ys, n, cx + 0.5, cy + 0.5)) {
+                        cells[cy*CELLS + cx] = floodlevel[i];
+                    }
+                }
+            }
+        }
+
+        // Merge each row into runs of cells in the same level interval, and
+        // extend each run downward while the next row has an identical one.
+        int qx[] = new int[4], qy[] = new int[4];
+        int open[][] = new int[0][];     // {x0, x1, bin, y0}
+        for (int cy=0; cy<=CELLS; ++cy) {
+            List<int[]> runs = new ArrayList<int[]>();
+            if (cy < CELLS) {
+                int cx = 0;
+                while (cx < CELLS) {
+                    float v = cells[cy*CELLS + cx];
+                    if (Float.isNaN(v)) { ++cx; continue; }
+                    int bin = (int)Math.round(v / LEVEL_STEP);
+                    int x0 = cx;
+                    while (cx < CELLS && !Float.isNaN(cells[cy*CELLS + cx])
+                           && (int)Math.round(cells[cy*CELLS + cx] / LEVEL_STEP) == bin) {
+                        ++cx;
+                    }
+                    runs.add(new int[] { x0, cx, bin, cy });
+                }
+            }
+            List<int[]> next = new ArrayList<int[]>();
+            for (int[] r : open) {
+                boolean continued = false;
+                for (int k=0; k<runs.size(); ++k) {
+                    int s[] = runs.get(k);
+                    if (s[0] == r[0] && s[1] == r[1] && s[2] == r[2]) {
+                        s[3] = r[3];
+                        continued = true;
+                        break;
+                    }
+                }
+                if (!continued) {
+                    int x0 = (int)Math.round(r[0] * cellsize), x1 = (int)Math.round(r[1] * cellsize);
+                    int y0 = (int)Math.round(r[3] * cellsize), y1 = (int)Math.round(cy * cellsize);
+                    qx[0] = x0; qy[0] = y0;
+                    qx[1] = x1; qy[1] = y0;
+                    qx[2] = x1; qy[2] = y1;
+                    qx[3] = x0; qy[3] = y1;
+                    layer.addPolygon(qx, qy, 4, (float)(r[2] * LEVEL_STEP), Float.NaN, Float.NaN, timestep);
+                }
+            }
+            next.addAll(runs);
+            open = next.toArray(new int[0][]);
+        }
+    }
+
+    private static boolean inside(double xs[], double ys[], int n, double x, double y) {
+        boolean in = false;
+        for (int i=0, j=n-1; i<n; j=i++) {
+            if ((ys[i] > y) != (ys[j] > y)
+                && x < (xs[j] - xs[i]) * (y - ys[i]) / (ys[j] - ys[i]) + xs[i]) {
+                in = !in;
+            }
+        }
+        return in;
+    }
+
+    private void writeMetadata() throws IOException {
+        new File(dir).mkdirs();
+        FileWriter w = new FileWriter(new File(dir, "metadata.json"));
+        w.write(String.format("{\"name\":\"%s\",\"format\":\"pbf\",\"minzoom\":%d,\"maxzoom\":%d,"
+                              + "\"bounds\":[%.6f,%.6f,%.6f,%.6f],"
+                              + "\"vector_layers\":[{\"id\":\"%s\",\"minzoom\":%d,\"maxzoom\":%d,"
+                              + "\"fields\":{\"floodlevel\":\"Number\",\"depth\":\"Number\",\"level63\":\"Number\",\"timestep\":\"Number\"}}]}\n",
+                              new File(dir).getName(), minzoom, maxzoom,
+                              west, south, east, north,
+                              LAYER_NAME, minzoom, maxzoom));
+        w.close();
+    }
+
+    /**
+     * Encoder for one tile's layer, in the MVT protocol buffer format.
+     */
+    private static class Layer {
+        static final String KEYS[] = { "floodlevel", "depth", "level63", "timestep" };
+
+        ByteArrayOutputStream features = new ByteArrayOutputStream();
+        Map<Float,Integer> floatValues = new HashMap<Float,Integer>();
+        Map<Integer,Integer> intValues = new HashMap<Integer,Integer>();
+        ByteArrayOutputStream values = new ByteArrayOutputStream();
+        int nvalues = 0;
+        int nfeatures = 0;
+
+        int floatValue(float v) {
+            Integer k = floatValues.get(v);
+            if (k == null) {
+                ByteArrayOutputStream val = new ByteArrayOutputStream();
+                tag(val, 2, 5);
+                int bits = Float.floatToIntBits(v);
+                for (int i=0; i<4; ++i) { val.write((bits >>> (8*i)) & 0xff); }
+                bytes(values, 4, val.toByteArray());
+                k = nvalues++;
+                floatValues.put(v, k);
+            }
+            return k;
+        }
+
+        int intValue(int v) {
+            Integer k = intValues.get(v);
+            if (k == null) {
+                ByteArrayOutputStream val = new ByteArrayOutputStream();
+                tag(val, 4, 0);
+                varint(val, v);
+                bytes(values, 4, val.toByteArray());
+                k = nvalues++;
+                intValues.put(v, k);
+            }
+            return k;
+        }
+
+        void addPolygon(int xs[], int ys[], int n, float flood, float dep, float lev, int time) {
+            // exterior rings must wind clockwise in tile coordinates (y down),
+            // which makes their signed area positive
+            long area = 0;
+            for (int i=0; i<n; ++i) {
+                int j = (i+1) % n;
+                area += (long)xs[i] * ys[j] - (long)xs[j] * ys[i];
+            }
+            if (area == 0) { return; }
+
+            ByteArrayOutputStream tags = new ByteArrayOutputStream();
+            varint(tags, 0); varint(tags, floatValue(flood));
+            if (!Float.isNaN(dep)) { varint(tags, 1); varint(tags, floatValue(dep)); }
+            if (!Float.isNaN(lev)) { varint(tags, 2); varint(tags, floatValue(lev)); }
+            varint(tags, 3); varint(tags, intValue(time));
+
+            ByteArrayOutputStream geom = new ByteArrayOutputStream();
+            int cx = 0, cy = 0;
+            for (int k=0; k<n; ++k) {
+                int i = (area > 0) ? k : (n-1-k);
+                if (k == 0) {
+                    varint(geom, (1 & 0x7) | (1 << 3));             // MoveTo, 1 point
+                } else if (k == 1) {
+                    varint(geom, (2 & 0x7) | ((n-1) << 3));         // LineTo, n-1 points
+                }
+                varint(geom, zigzag(xs[i] - cx));
+                varint(geom, zigzag(ys[i] - cy));
+                cx = xs[i];
+                cy = ys[i];
+            }
+            varint(geom, (7 & 0x7) | (1 << 3));                     // ClosePath
+
+            ByteArrayOutputStream f = new ByteArrayOutputStream();
+            tag(f, 1, 0); varint(f, nfeatures + 1);                 // id
+            bytes(f, 2, tags.toByteArray());
+            tag(f, 3, 0); varint(f, 3);                             // type POLYGON
+            bytes(f, 4, geom.toByteArray());
+            bytes(features, 2, f.toByteArray());
+            ++nfeatures;
+        }
+
+        byte[] tile() {
+            ByteArrayOutputStream layer = new ByteArrayOutputStream();
+            tag(layer, 15, 0); varint(layer, 2);                    // version
+            bytes(layer, 1, LAYER_NAME.getBytes());
+            byte f[] = features.toByteArray();
+            layer.write(f, 0, f.length);
+            for (String k : KEYS) {
+                bytes(layer, 3, k.getBytes());
+            }
+            byte v[] = values.toByteArray();
+            layer.write(v, 0, v.length);
+            tag(layer, 5, 0); varint(layer, EXTENT);
+            ByteArrayOutputStream tile = new ByteArrayOutputStream();
+            bytes(tile, 3, layer.toByteArray());
+            return tile.toByteArray();
+        }
+
+        static int zigzag(int n) {
+            return (n << 1) ^ (n >> 31);
+        }
+
+        static void varint(ByteArrayOutputStream out, long v) {
+            while ((v & ~0x7fL) != 0) {
+                out.write((int)((v & 0x7f) | 0x80));
+                v >>>= 7;
+            }
+            out.write((int)v);
+        }
+
+        static void tag(ByteArrayOutputStream out, int field, int wiretype) {
+            varint(out, (field << 3) | wiretype);
+        }
+
+        static void bytes(ByteArrayOutputStream out, int field, byte b[]) {
+            tag(out, field, 2);
+            varint(out, b.length);
+            out.write(b, 0, b.length);
+        }
+    }
+
+}
@@ -69,6 +69,20 @@ class Vertex {
      */
     public double floodlevel[];
 
+    /**
+     * Position of this vertex's values in a LevelSeries; only used
+     * when the level63 and floodlevel arrays are not held in memory.
+     */
+    public int slot = -1;
+
+    /**
+     * For a vertex created by subdividing an edge, the two vertices at
+     * the ends of that edge; null for vertices read from the grid file.
+     * Used to compute the new vertex's levels on demand when they are
+     * not held in memory.
+     */
+    public Vertex parents[];
+
     public Vertex(int index, double x, double y, double depth) {
 	this.index = index;
         this.x     = x;
@@ -78,6 +92,7 @@ class Vertex {
 
     public static Vertex average(Vertex a, Vertex b) {
         Vertex c = new Vertex( -1, (a.x + b.x)/2, (a.y + b.y)/2,  (a.depth + b.depth)/2);
+        c.parents = new Vertex[] { a, b };
         if (a.level63 != null && b.level63 != null) {
             c.level63  = new double[a.level63.length];
             c.floodlevel = new double[a.level63.length];